@@ -0,0 +1,84 @@
+package com.darkyen.tproll;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Finds the source code location from which a log method was called, for {@link TPLogger#setLocationCapture(boolean)}.
+ *
+ * Walking the stack is expensive, so found locations may be cached by the identity of the message template.
+ * The cache is approximate: each logger has its own, so it is keyed by template and logger, not by call site.
+ * Identical template literals are the same String instance, so when the same template is logged from several places
+ * of a class, or through a logger which is shared by several classes, all of them get the location of whichever was called first.
+ * Calls with dynamically created templates always miss the cache.
+ * Without the cache, the stack is walked for each message and the location is always exact.
+ */
+final class CallerLocations {
+
+    private static final int CACHE_SIZE = 64;
+
+    /** Direct-mapped, indexed by identity hash of the template. Entries are immutable, so races only cause extra walks.
+     * Null when not caching. */
+    private final @Nullable Entry @Nullable [] cache;
+
+    /** @param cached whether to cache the locations by template, see class documentation */
+    CallerLocations(boolean cached) {
+        this.cache = cached ? new Entry[CACHE_SIZE] : null;
+    }
+
+    /** @return whether the locations are cached by template */
+    boolean isCached() {
+        return cache != null;
+    }
+
+    /** @return location of the code which logs the template, or null if it can't be determined */
+    @Nullable StackTraceElement locate(@NotNull String template) {
+        final Entry[] cache = this.cache;
+        if (cache == null) {
+            return findCaller();
+        }
+        final int slot = System.identityHashCode(template) & (CACHE_SIZE - 1);
+        Entry entry = cache[slot];
+        if (entry == null || entry.template != template) {
+            cache[slot] = entry = new Entry(template, findCaller());
+        }
+        return entry.location;
+    }
+
+    private static final class Entry {
+        final @NotNull String template;
+        final @Nullable StackTraceElement location;
+
+        Entry(@NotNull String template, @Nullable StackTraceElement location) {
+            this.template = template;
+            this.location = location;
+        }
+    }
+
+    /** @return first stack frame outside of the logging framework, or null if there is none */
+    static @Nullable StackTraceElement findCaller() {
+        if (StackWalkerCallerFinder.AVAILABLE) {
+            return StackWalkerCallerFinder.findCaller();
+        }
+
+        // Java 8 fallback, walks and materializes the whole stack
+        for (StackTraceElement element : new Throwable().getStackTrace()) {
+            if (!isLoggingFrame(element.getClassName())) {
+                return element;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the frame of given class belongs to the logging framework and not to the code which logs.
+     * Frames of the logging frameworks which are bridged to tproll (see the integration package) are skipped as well.
+     */
+    static boolean isLoggingFrame(@NotNull String className) {
+        return className.startsWith("com.darkyen.tproll.")
+                || className.startsWith("org.slf4j.")
+                || className.startsWith("java.util.logging.")
+                || className.startsWith("sun.util.logging.")
+                || className.startsWith("com.esotericsoftware.minlog.");
+    }
+}
@@ -0,0 +1,141 @@
+package com.darkyen.tproll;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MutableCallSite;
+
+/**
+ * Global level guards, which tell whether any logger at all may have given level enabled.
+ *
+ * Guards are backed by constant {@link MutableCallSite}s, so the JIT can treat their value as a constant
+ * and eliminate disabled log statements completely. When the value changes, the compiled code which depends
+ * on it is deoptimized. That is expensive, but happens only when log levels change.
+ *
+ * When {@link java.lang.invoke} is not available, plain volatile fields are used instead.
+ */
+final class LevelGuards {
+
+    private LevelGuards() {}
+
+    private static final @Nullable MutableCallSite @Nullable [] SITES;
+    private static final @Nullable MethodHandle TRACE_GUARD;
+    private static final @Nullable MethodHandle DEBUG_GUARD;
+    private static final @Nullable MethodHandle INFO_GUARD;
+    private static final @Nullable MethodHandle WARN_GUARD;
+    private static final @Nullable MethodHandle ERROR_GUARD;
+
+    /** Lowest enabled level, used when {@link #SITES} are not available */
+    private static volatile byte fallbackMinLevel = TPLogger.INFO;
+    /** Lowest enabled level, as currently reflected in the {@link #SITES} */
+    private static byte minLevel = TPLogger.INFO;
+
+    static {
+        MutableCallSite[] sites = null;
+        MethodHandle trace = null, debug = null, info = null, warn = null, error = null;
+        try {
+            sites = new MutableCallSite[TPLogger.ERROR + 1];
+            for (byte level = TPLogger.TRACE; level <= TPLogger.ERROR; level++) {
+                sites[level] = new MutableCallSite(MethodHandles.constant(boolean.class, level >= minLevel));
+            }
+            trace = sites[TPLogger.TRACE].dynamicInvoker();
+            debug = sites[TPLogger.DEBUG].dynamicInvoker();
+            info = sites[TPLogger.INFO].dynamicInvoker();
+            warn = sites[TPLogger.WARN].dynamicInvoker();
+            error = sites[TPLogger.ERROR].dynamicInvoker();
+        } catch (Throwable ignored) {
+            // Not supported on this platform
+            sites = null;
+            trace = debug = info = warn = error = null;
+        }
+        SITES = sites;
+        TRACE_GUARD = trace;
+        DEBUG_GUARD = debug;
+        INFO_GUARD = info;
+        WARN_GUARD = warn;
+        ERROR_GUARD = error;
+    }
+
+    /**
+     * Update the guards. Must be called with TPLogger's level lock held.
+     * @param newMinLevel lowest level enabled in any logger
+     */
+    static void update(byte newMinLevel) {
+        fallbackMinLevel = newMinLevel;
+        final byte oldMinLevel = minLevel;
+        if (oldMinLevel == newMinLevel) {
+            return;
+        }
+        minLevel = newMinLevel;
+
+        final MutableCallSite[] sites = SITES;
+        if (sites == null) {
+            return;
+        }
+        int changedCount = 0;
+        final MutableCallSite[] changed = new MutableCallSite[sites.length];
+        for (byte level = TPLogger.TRACE; level <= TPLogger.ERROR; level++) {
+            final boolean enabled = level >= newMinLevel;
+            if (enabled != (level >= oldMinLevel)) {
+                final MutableCallSite site = sites[level];
+                assert site != null;
+                site.setTarget(MethodHandles.constant(boolean.class, enabled));
+                changed[changedCount++] = site;
+            }
+        }
+        final MutableCallSite[] syncSites = new MutableCallSite[changedCount];
+        System.arraycopy(changed, 0, syncSites, 0, changedCount);
+        MutableCallSite.syncAll(syncSites);
+    }
+
+    static boolean trace() {
+        final MethodHandle guard = TRACE_GUARD;
+        if (guard == null) return fallbackMinLevel <= TPLogger.TRACE;
+        try {
+            return (boolean) guard.invokeExact();
+        } catch (Throwable t) {
+            throw new AssertionError(t);
+        }
+    }
+
+    static boolean debug() {
+        final MethodHandle guard = DEBUG_GUARD;
+        if (guard == null) return fallbackMinLevel <= TPLogger.DEBUG;
+        try {
+            return (boolean) guard.invokeExact();
+        } catch (Throwable t) {
+            throw new AssertionError(t);
+        }
+    }
+
+    static boolean info() {
+        final MethodHandle guard = INFO_GUARD;
+        if (guard == null) return fallbackMinLevel <= TPLogger.INFO;
+        try {
+            return (boolean) guard.invokeExact();
+        } catch (Throwable t) {
+            throw new AssertionError(t);
+        }
+    }
+
+    static boolean warn() {
+        final MethodHandle guard = WARN_GUARD;
+        if (guard == null) return fallbackMinLevel <= TPLogger.WARN;
+        try {
+            return (boolean) guard.invokeExact();
+        } catch (Throwable t) {
+            throw new AssertionError(t);
+        }
+    }
+
+    static boolean error() {
+        final MethodHandle guard = ERROR_GUARD;
+        if (guard == null) return fallbackMinLevel <= TPLogger.ERROR;
+        try {
+            return (boolean) guard.invokeExact();
+        } catch (Throwable t) {
+            throw new AssertionError(t);
+        }
+    }
+}
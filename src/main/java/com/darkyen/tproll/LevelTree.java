@@ -0,0 +1,141 @@
+package com.darkyen.tproll;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Trie of log level overrides, keyed by dot-delimited logger name segments.
+ * For example level set for "com.example" applies to "com.example", "com.example.Foo" and "com.example.foo.Bar",
+ * but not to "com.examples".
+ *
+ * Modifications must be guarded by {@link TPLogger}'s level lock, lookups are lock-free.
+ */
+final class LevelTree {
+
+    private static final byte INHERIT = 0;
+
+    private final @NotNull Node root = new Node("");
+    private volatile int overrides = 0;
+
+    boolean isEmpty() {
+        return overrides == 0;
+    }
+
+    /**
+     * @param prefix non-empty dot-delimited name prefix
+     * @param level to set, or {@link #INHERIT} (0) to remove the override
+     */
+    void set(@NotNull String prefix, byte level) {
+        Node node = root;
+        int start = 0;
+        final int length = prefix.length();
+        while (start < length) {
+            int end = prefix.indexOf('.', start);
+            if (end == -1) end = length;
+
+            Node child = node.child(prefix, start, end);
+            if (child == null) {
+                if (level == INHERIT) {
+                    // Nothing to remove
+                    return;
+                }
+                child = node.addChild(prefix.substring(start, end));
+            }
+            node = child;
+            start = end + 1;
+        }
+
+        if (node.level == INHERIT && level != INHERIT) {
+            overrides++;
+        } else if (node.level != INHERIT && level == INHERIT) {
+            overrides--;
+        }
+        node.level = level;
+    }
+
+    /** @return the lowest level of all overrides or defaultLevel if lower */
+    byte minLevel(byte defaultLevel) {
+        return minLevel(root, defaultLevel);
+    }
+
+    private static byte minLevel(@NotNull Node node, byte min) {
+        if (node.level != INHERIT && node.level < min) {
+            min = node.level;
+        }
+        final Node[] children = node.children;
+        if (children != null) {
+            for (Node child : children) {
+                min = minLevel(child, min);
+            }
+        }
+        return min;
+    }
+
+    /**
+     * Find the level of the most specific override that applies to the name.
+     * Does not allocate.
+     * @return the level or defaultLevel if there is no applicable override
+     */
+    byte resolve(@NotNull String name, byte defaultLevel) {
+        if (overrides == 0) {
+            return defaultLevel;
+        }
+
+        byte result = defaultLevel;
+        Node node = root;
+        int start = 0;
+        final int length = name.length();
+        while (start < length) {
+            int end = name.indexOf('.', start);
+            if (end == -1) end = length;
+
+            node = node.child(name, start, end);
+            if (node == null) {
+                break;
+            }
+            if (node.level != INHERIT) {
+                result = node.level;
+            }
+            start = end + 1;
+        }
+        return result;
+    }
+
+    private static final class Node {
+        final @NotNull String segment;
+        volatile byte level = INHERIT;
+        private volatile @NotNull Node @Nullable [] children = null;
+
+        Node(@NotNull String segment) {
+            this.segment = segment;
+        }
+
+        @Nullable Node child(@NotNull String name, int start, int end) {
+            final Node[] children = this.children;
+            if (children == null) {
+                return null;
+            }
+            final int segmentLength = end - start;
+            for (Node child : children) {
+                if (child.segment.length() == segmentLength && child.segment.regionMatches(0, name, start, segmentLength)) {
+                    return child;
+                }
+            }
+            return null;
+        }
+
+        @NotNull Node addChild(@NotNull String segment) {
+            final Node child = new Node(segment);
+            final Node[] children = this.children;
+            if (children == null) {
+                this.children = new Node[]{child};
+            } else {
+                final Node[] newChildren = new Node[children.length + 1];
+                System.arraycopy(children, 0, newChildren, 0, children.length);
+                newChildren[children.length] = child;
+                this.children = newChildren;
+            }
+            return child;
+        }
+    }
+}
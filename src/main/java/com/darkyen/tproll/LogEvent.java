@@ -0,0 +1,253 @@
+package com.darkyen.tproll;
+
+import com.darkyen.tproll.util.PrettyPrinter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Marker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.darkyen.tproll.util.PrettyPrinter.patternSubstituteInto;
+
+/**
+ * A message to be logged, with its template and arguments, before formatting.
+ * Formatting is done lazily, on first call to {@link #getContent()}, so {@link LogFunction}s which
+ * drop the message or format it somewhere else don't pay for it.
+ *
+ * Instances are reused, so do not keep them around after the {@link LogFunction#log(LogEvent)} call returns!
+ * Not thread safe.
+ */
+@SuppressWarnings("unused")
+public final class LogEvent {
+
+    private @NotNull String name = "";
+    private long time = 0L;
+    private byte level = 0;
+    private @Nullable Marker marker = null;
+    private @NotNull CharSequence template = "";
+    private final @NotNull ArrayList<@Nullable Object> arguments = new ArrayList<>();
+    private @Nullable StackTraceElement location = null;
+    private @NotNull MDCMap mdc = MDCMap.EMPTY;
+    /** Keys on even indices, their values on following odd indices */
+    private final @NotNull ArrayList<@Nullable Object> keyValues = new ArrayList<>();
+
+    private final @NotNull StringBuilder content = new StringBuilder(64);
+    private boolean formatted = false;
+
+    /**
+     * Reset the event and fill it with new message data.
+     * @param template of the message, or already formatted message, when no arguments are added
+     */
+    public void set(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence template) {
+        clear();
+        this.name = name;
+        this.time = time;
+        this.level = level;
+        this.marker = marker;
+        this.template = template;
+    }
+
+    /** Set the marker after {@link #set(String, long, byte, Marker, CharSequence)}, used by {@link TPLoggingEventBuilder} */
+    void setMarker(@Nullable Marker marker) {
+        this.marker = marker;
+    }
+
+    /** Set the time and template after {@link #set(String, long, byte, Marker, CharSequence)}, keeping the arguments, used by {@link TPLoggingEventBuilder} */
+    void setMessage(long time, @NotNull CharSequence template) {
+        this.time = time;
+        this.template = template;
+        formatted = false;
+    }
+
+    /** Add argument which will be substituted into the template. */
+    public void addArgument(@Nullable Object argument) {
+        arguments.add(argument);
+        formatted = false;
+    }
+
+    /** Add arguments which will be substituted into the template. */
+    public void addArguments(@Nullable Object @NotNull [] arguments) {
+        final ArrayList<@Nullable Object> args = this.arguments;
+        args.ensureCapacity(args.size() + arguments.length);
+        //noinspection ManualArrayToCollectionCopy
+        for (Object argument : arguments) {
+            //noinspection UseBulkOperation
+            args.add(argument);
+        }
+        formatted = false;
+    }
+
+    /** Set the source code location from which the message was logged, see {@link TPLogger#setLocationCapture(boolean)} */
+    public void setLocation(@Nullable StackTraceElement location) {
+        this.location = location;
+    }
+
+    /** Add structured key-value pair, which is not a part of the message template */
+    public void addKeyValue(@NotNull String key, @Nullable Object value) {
+        keyValues.add(key);
+        keyValues.add(value);
+    }
+
+    /** Set the MDC snapshot, which was current when the message was logged */
+    public void setMDC(@NotNull MDCMap mdc) {
+        this.mdc = mdc;
+    }
+
+    /** Release references held by this event and the formatted content. */
+    public void clear() {
+        marker = null;
+        location = null;
+        mdc = MDCMap.EMPTY;
+        keyValues.clear();
+        template = "";
+        arguments.clear();
+        content.setLength(0);
+        formatted = false;
+    }
+
+    /** @return name of the logger */
+    public @NotNull String getName() {
+        return name;
+    }
+
+    /** @return time in ms since start of the app or since 1970, as given by {@link com.darkyen.tproll.util.TimeProvider} */
+    public long getTime() {
+        return time;
+    }
+
+    /** @return level of the message */
+    public byte getLevel() {
+        return level;
+    }
+
+    /** @return marker provided or null */
+    public @Nullable Marker getMarker() {
+        return marker;
+    }
+
+    /** @return unformatted message template */
+    public @NotNull CharSequence getTemplate() {
+        return template;
+    }
+
+    /** @return arguments of the template, do not modify! */
+    public @NotNull List<@Nullable Object> getArguments() {
+        return arguments;
+    }
+
+    /** @return source code location from which the message was logged, null if not captured */
+    public @Nullable StackTraceElement getLocation() {
+        return location;
+    }
+
+    /** @return MDC values at the time of logging, immutable, so it can be kept around */
+    public @NotNull MDCMap getMDC() {
+        return mdc;
+    }
+
+    /** @return amount of key-value pairs added through {@link #addKeyValue(String, Object)} */
+    public int getKeyValueCount() {
+        return keyValues.size() >> 1;
+    }
+
+    /** @return key of the key-value pair at index, in [0, {@link #getKeyValueCount()}) */
+    public @NotNull String getKey(int index) {
+        return (String) keyValues.get(index << 1);
+    }
+
+    /** @return value of the key-value pair at index, in [0, {@link #getKeyValueCount()}) */
+    public @Nullable Object getValue(int index) {
+        return keyValues.get((index << 1) + 1);
+    }
+
+    /**
+     * Append the key-value pairs in the form of "key=value key2=value2", values are pretty printed.
+     * Does nothing if there are none.
+     */
+    public void appendKeyValues(@NotNull StringBuilder sb) {
+        final ArrayList<@Nullable Object> keyValues = this.keyValues;
+        for (int i = 0; i < keyValues.size(); i += 2) {
+            if (i != 0) {
+                sb.append(' ');
+            }
+            sb.append((String) keyValues.get(i)).append('=');
+            PrettyPrinter.append(sb, keyValues.get(i + 1));
+        }
+    }
+
+    /** Append location, MDC and key-value pairs, each preceded by a space, if present. */
+    public void appendContext(@NotNull StringBuilder sb) {
+        final StackTraceElement location = this.location;
+        if (location != null) {
+            sb.append(' ');
+            appendLocation(sb, location);
+        }
+        final MDCMap mdc = this.mdc;
+        if (!mdc.isEmpty()) {
+            sb.append(' ');
+            mdc.appendTo(sb);
+        }
+        if (!keyValues.isEmpty()) {
+            sb.append(' ');
+            appendKeyValues(sb);
+        }
+    }
+
+    /** @return throwable associated with the message (last argument, if it is a throwable), or null */
+    public @Nullable Throwable getThrowable() {
+        final ArrayList<@Nullable Object> arguments = this.arguments;
+        if (arguments.isEmpty()) {
+            return null;
+        }
+        final Object last = arguments.get(arguments.size() - 1);
+        return last instanceof Throwable ? (Throwable) last : null;
+    }
+
+    /**
+     * Format the message, if not formatted already.
+     * @return formatted message, without trailing newline. Do not keep around!
+     */
+    public @NotNull CharSequence getContent() {
+        final ArrayList<@Nullable Object> arguments = this.arguments;
+        if (arguments.isEmpty()) {
+            return template;
+        }
+        final StringBuilder content = this.content;
+        if (!formatted) {
+            content.setLength(0);
+            patternSubstituteInto(content, template, arguments);
+            formatted = true;
+        }
+        return content;
+    }
+
+    /**
+     * Append the location in a compact form, for example "Foo.bar(Foo.java:42)".
+     * @see #getLocation()
+     */
+    public static void appendLocation(@NotNull StringBuilder sb, @NotNull StackTraceElement location) {
+        final String className = location.getClassName();
+        sb.append(className, className.lastIndexOf('.') + 1, className.length());
+        sb.append('.').append(location.getMethodName()).append('(');
+        final String fileName = location.getFileName();
+        if (fileName == null) {
+            sb.append("Unknown Source");
+        } else {
+            sb.append(fileName);
+            if (location.getLineNumber() >= 0) {
+                sb.append(':').append(location.getLineNumber());
+            }
+        }
+        sb.append(')');
+    }
+
+    /** Append the formatted message into the builder, without formatting it into internal buffer first (if not formatted yet). */
+    public void formatInto(@NotNull StringBuilder out) {
+        if (formatted) {
+            out.append(content);
+        } else {
+            patternSubstituteInto(out, template, arguments);
+        }
+    }
+}
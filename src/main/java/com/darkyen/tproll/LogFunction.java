@@ -12,6 +12,40 @@ public abstract class LogFunction {
     /**
      * Called when logger needs to log a message. Called only when that log level is enabled in the logger.
      * Can be called by any thread, even simultaneously, and thus MUST be thread safe.
+     *
+     * Default implementation formats the event and calls {@link #log(String, long, byte, Marker, CharSequence)}.
+     * Override to avoid formatting messages which are not going to be logged, or to format them elsewhere.
+     * @param event to log, do not keep around!
+     * @return true if logged, false if not logged because of an error
+     */
+    public boolean log(@NotNull LogEvent event) {
+        return log(event.getName(), event.getTime(), event.getLevel(), event.getMarker(), event.getContent());
+    }
+
+    /**
+     * Log multiple events at once. Called by asynchronous adapters, such as
+     * {@link com.darkyen.tproll.logfunctions.adapters.ThreadedSafetyNet}, with all messages that are waiting.
+     * Can be called by any thread, even simultaneously, and thus MUST be thread safe.
+     *
+     * Default implementation calls {@link #log(LogEvent)} for each event.
+     * Override when logging multiple messages at once is cheaper than logging them one by one.
+     * @param events to log, in order, do not keep around!
+     * @param count of events to log, from the start of the array
+     * @return true if all were logged, false if some were not logged because of an error
+     */
+    public boolean logBatch(@NotNull LogEvent @NotNull [] events, int count) {
+        boolean success = true;
+        for (int i = 0; i < count; i++) {
+            if (!log(events[i])) {
+                success = false;
+            }
+        }
+        return success;
+    }
+
+    /**
+     * Called when logger needs to log a formatted message, by default through {@link #log(LogEvent)}.
+     * Can be called by any thread, even simultaneously, and thus MUST be thread safe.
      * @param name of the logger
      * @param time in ms since start of the app or since 1970
      * @param level of this message
@@ -30,6 +64,17 @@ public abstract class LogFunction {
         return true;
     }
 
+    /**
+     * Whether the log function can't keep up with the messages, for example because the disk is slow or the buffer
+     * of an asynchronous adapter is filling up. Callers may then skip optional logging work.
+     * Called often, so it must be cheap. Can be called by any thread, even simultaneously, and thus MUST be thread safe.
+     * @return true if congested, false by default
+     * @see TPLogger#setCongestionAware(boolean)
+     */
+    public boolean isCongested() {
+        return false;
+    }
+
     /** Called when the {@link LogFunction} is assigned to {@link TPLogger#setLogFunction(LogFunction)} */
     public void start() {}
 
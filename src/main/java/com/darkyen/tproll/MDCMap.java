@@ -0,0 +1,157 @@
+package com.darkyen.tproll;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable map of MDC (mapped diagnostic context) values, in insertion order.
+ * Modifications return a new map, so a snapshot of the current context is just a reference to it.
+ *
+ * Entries are accessed by index, through {@link #key(int)} and {@link #value(int)}, to avoid iterator allocation.
+ *
+ * @see TPMDCAdapter
+ */
+@SuppressWarnings("unused")
+public final class MDCMap {
+
+    public static final @NotNull MDCMap EMPTY = new MDCMap(new String[0]);
+
+    /** Keys on even indices, their values on following odd indices */
+    private final @Nullable String @NotNull [] entries;
+
+    private MDCMap(@Nullable String @NotNull [] entries) {
+        this.entries = entries;
+    }
+
+    /** @return amount of entries */
+    public int size() {
+        return entries.length >> 1;
+    }
+
+    public boolean isEmpty() {
+        return entries.length == 0;
+    }
+
+    /** @return key of the entry at index, in [0, {@link #size()}) */
+    public @NotNull String key(int index) {
+        //noinspection ConstantConditions
+        return entries[index << 1];
+    }
+
+    /** @return value of the entry at index, in [0, {@link #size()}) */
+    public @Nullable String value(int index) {
+        return entries[(index << 1) + 1];
+    }
+
+    private int indexOf(@NotNull String key) {
+        final String[] entries = this.entries;
+        for (int i = 0; i < entries.length; i += 2) {
+            if (key.equals(entries[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** @return value of the key or null if not present */
+    public @Nullable String get(@NotNull String key) {
+        final int i = indexOf(key);
+        return i == -1 ? null : entries[i + 1];
+    }
+
+    /** @return map with the key set to value, this if it already is */
+    public @NotNull MDCMap with(@NotNull String key, @Nullable String value) {
+        final String[] entries = this.entries;
+        final int i = indexOf(key);
+        final String[] newEntries;
+        if (i == -1) {
+            newEntries = new String[entries.length + 2];
+            System.arraycopy(entries, 0, newEntries, 0, entries.length);
+            newEntries[entries.length] = key;
+            newEntries[entries.length + 1] = value;
+        } else {
+            if (value == null ? entries[i + 1] == null : value.equals(entries[i + 1])) {
+                return this;
+            }
+            newEntries = entries.clone();
+            newEntries[i + 1] = value;
+        }
+        return new MDCMap(newEntries);
+    }
+
+    /** @return map without the key, this if it is not present */
+    public @NotNull MDCMap without(@NotNull String key) {
+        final String[] entries = this.entries;
+        final int i = indexOf(key);
+        if (i == -1) {
+            return this;
+        }
+        if (entries.length == 2) {
+            return EMPTY;
+        }
+        final String[] newEntries = new String[entries.length - 2];
+        System.arraycopy(entries, 0, newEntries, 0, i);
+        System.arraycopy(entries, i + 2, newEntries, i, entries.length - i - 2);
+        return new MDCMap(newEntries);
+    }
+
+    /** @return new mutable map with the same content */
+    public @NotNull Map<String, String> toMap() {
+        final HashMap<String, String> result = new HashMap<>();
+        final String[] entries = this.entries;
+        for (int i = 0; i < entries.length; i += 2) {
+            result.put(entries[i], entries[i + 1]);
+        }
+        return result;
+    }
+
+    /** @return map with the same content as given map */
+    public static @NotNull MDCMap of(@Nullable Map<String, String> map) {
+        if (map == null || map.isEmpty()) {
+            return EMPTY;
+        }
+        final String[] entries = new String[map.size() * 2];
+        int i = 0;
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            entries[i++] = entry.getKey();
+            entries[i++] = entry.getValue();
+        }
+        return new MDCMap(entries);
+    }
+
+    /** Append the entries in the form of "{key=value, key2=value2}". */
+    public void appendTo(@NotNull StringBuilder sb) {
+        final String[] entries = this.entries;
+        sb.append('{');
+        for (int i = 0; i < entries.length; i += 2) {
+            if (i != 0) {
+                sb.append(", ");
+            }
+            sb.append(entries[i]).append('=').append(entries[i + 1]);
+        }
+        sb.append('}');
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return Arrays.equals(entries, ((MDCMap) o).entries);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(entries);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        appendTo(sb);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,237 @@
+package com.darkyen.tproll;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Limits how many messages can be logged from each call site, see {@link TPLogger#setRateLimiter(RateLimiter)}.
+ *
+ * Call site is identified by the logger and the identity of the message template,
+ * so that a single log statement in a tight loop does not flood the log.
+ * Each call site has a token bucket, messages over the limit are suppressed, or sampled, if configured.
+ * The amount of suppressed messages is logged (at the highest level of the suppressed messages)
+ * before the next message from the same call site is let through, at most once per summary interval.
+ * Call sites which went quiet are summarized by a background thread, once their summary interval elapses
+ * (it checks every summary interval, but at most once per second), when they are evicted, or when the limiter is replaced.
+ *
+ * Limiter is checked before the message is formatted, so suppressed messages are cheap.
+ * Thread safe.
+ */
+@SuppressWarnings("unused")
+public final class RateLimiter {
+
+    /** Must be a power of two */
+    private static final int SITE_COUNT = 1024;
+    /** How many slots to check before evicting a call site */
+    private static final int SITE_PROBES = 4;
+
+    /** Summarizes call sites which went quiet, shared by all limiters */
+    private static final @NotNull ScheduledThreadPoolExecutor SUMMARIZER = new ScheduledThreadPoolExecutor(1, runnable -> {
+        final Thread thread = new Thread(runnable, "RateLimiter summaries");
+        thread.setDaemon(true);
+        return thread;
+    });
+    static {
+        SUMMARIZER.setRemoveOnCancelPolicy(true);
+    }
+
+    private final double tokensPerNanosecond;
+    private final double burst;
+    private final int sampleOneIn;
+    private final long summaryIntervalNanos;
+
+    /** Open addressing table with limited probing. Sites are evicted when full, which resets their limit. */
+    private final @NotNull AtomicReferenceArray<@Nullable Site> sites = new AtomicReferenceArray<>(SITE_COUNT);
+
+    /** Periodic summary, while this limiter is used, guarded by this */
+    private @Nullable ScheduledFuture<?> summaryTask = null;
+
+    /**
+     * @param eventsPerSecond sustained amount of messages allowed from each call site per second
+     * @param burst how many messages can a call site log at once, after being quiet
+     */
+    public RateLimiter(double eventsPerSecond, int burst) {
+        this(eventsPerSecond, burst, 0, 10_000L);
+    }
+
+    /**
+     * @param eventsPerSecond sustained amount of messages allowed from each call site per second, 0 for sampling only
+     * @param burst how many messages can a call site log at once, after being quiet
+     * @param sampleOneIn let every n-th message over the limit through anyway, 0 to suppress all messages over the limit
+     * @param summaryIntervalMs minimal interval between summaries of suppressed messages of each call site
+     */
+    public RateLimiter(double eventsPerSecond, int burst, int sampleOneIn, long summaryIntervalMs) {
+        if (eventsPerSecond < 0 || burst < 0 || sampleOneIn < 0 || summaryIntervalMs < 0) {
+            throw new IllegalArgumentException("Negative rate limiter parameter");
+        }
+        if ((eventsPerSecond == 0 || burst == 0) && sampleOneIn == 0) {
+            throw new IllegalArgumentException("Rate limiter would suppress everything");
+        }
+        this.tokensPerNanosecond = eventsPerSecond / 1_000_000_000.0;
+        this.burst = burst;
+        this.sampleOneIn = sampleOneIn;
+        this.summaryIntervalNanos = summaryIntervalMs * 1_000_000L;
+    }
+
+    /**
+     * Check whether the message may be logged. If it may and there are suppressed messages to summarize,
+     * the summary is logged first.
+     * @return true if the message should be logged
+     */
+    boolean permit(@NotNull TPLogger logger, @NotNull String template, byte level) {
+        final Site site = site(logger, template);
+        final long now = System.nanoTime();
+        final long suppressed;
+        final long summaryPeriod;
+        final byte summaryLevel;
+        synchronized (site) {
+            if (!site.acquire(now, level)) {
+                return false;
+            }
+            summaryPeriod = now - site.lastSummary;
+            if (site.suppressed == 0 || summaryPeriod < summaryIntervalNanos) {
+                return true;
+            }
+            suppressed = site.suppressed;
+            summaryLevel = site.suppressedLevel;
+            site.suppressed = 0;
+            site.suppressedLevel = 0;
+            site.lastSummary = now;
+        }
+        logger.logSuppressedSummary(summaryLevel, template, suppressed, summaryPeriod / 1_000_000L);
+        return true;
+    }
+
+    /** Start summarizing in the background, called by {@link TPLogger#setRateLimiter(RateLimiter)}. */
+    synchronized void start() {
+        if (summaryTask == null) {
+            final long periodMs = Math.max(summaryIntervalNanos / 1_000_000L, 1000L);
+            summaryTask = SUMMARIZER.scheduleWithFixedDelay(() -> summarize(false), periodMs, periodMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Stop summarizing in the background and summarize everything that was suppressed, called when this limiter is replaced. */
+    void stop() {
+        synchronized (this) {
+            final ScheduledFuture<?> summaryTask = this.summaryTask;
+            if (summaryTask != null) {
+                this.summaryTask = null;
+                summaryTask.cancel(false);
+            }
+        }
+        summarize(true);
+    }
+
+    /**
+     * Log summaries of the call sites with suppressed messages.
+     * @param all true to summarize all of them, false only those whose summary interval has elapsed
+     */
+    private void summarize(boolean all) {
+        final long now = System.nanoTime();
+        for (int i = 0; i < SITE_COUNT; i++) {
+            final Site site = sites.get(i);
+            if (site != null) {
+                summarize(site, now, all);
+            }
+        }
+    }
+
+    private void summarize(@NotNull Site site, long now, boolean force) {
+        final long suppressed;
+        final long summaryPeriod;
+        final byte level;
+        synchronized (site) {
+            if (site.suppressed == 0) {
+                return;
+            }
+            summaryPeriod = now - site.lastSummary;
+            if (!force && summaryPeriod < summaryIntervalNanos) {
+                return;
+            }
+            suppressed = site.suppressed;
+            level = site.suppressedLevel;
+            site.suppressed = 0;
+            site.suppressedLevel = 0;
+            site.lastSummary = now;
+        }
+        site.logger.logSuppressedSummary(level, site.template, suppressed, summaryPeriod / 1_000_000L);
+    }
+
+    private @NotNull Site site(@NotNull TPLogger logger, @NotNull String template) {
+        int hash = System.identityHashCode(template) * 31 + System.identityHashCode(logger);
+        hash ^= hash >>> 16;
+        final AtomicReferenceArray<Site> sites = this.sites;
+        for (int i = 0; i < SITE_PROBES; i++) {
+            final Site site = sites.get((hash + i) & (SITE_COUNT - 1));
+            if (site == null) {
+                break;
+            }
+            if (site.template == template && site.logger == logger) {
+                return site;
+            }
+        }
+
+        // Not found, take the first empty slot or evict. Racing threads may create duplicate sites, that only makes the limit less strict.
+        final long now = System.nanoTime();
+        final Site site = new Site(logger, template, burst, now);
+        int slot = hash & (SITE_COUNT - 1);
+        for (int i = 0; i < SITE_PROBES; i++) {
+            final int probe = (hash + i) & (SITE_COUNT - 1);
+            if (sites.get(probe) == null) {
+                slot = probe;
+                break;
+            }
+        }
+        final Site evicted = sites.getAndSet(slot, site);
+        if (evicted != null) {
+            // Don't lose its suppressed messages
+            summarize(evicted, now, true);
+        }
+        return site;
+    }
+
+    private final class Site {
+        final @NotNull TPLogger logger;
+        final @NotNull String template;
+
+        /** Guarded by this */
+        double tokens;
+        long lastRefill;
+        long lastSummary;
+        long suppressed = 0;
+        /** Highest level of the suppressed messages */
+        byte suppressedLevel = 0;
+        int overLimit = 0;
+
+        Site(@NotNull TPLogger logger, @NotNull String template, double tokens, long now) {
+            this.logger = logger;
+            this.template = template;
+            this.tokens = tokens;
+            this.lastRefill = now;
+            this.lastSummary = now;
+        }
+
+        boolean acquire(long now, byte level) {
+            tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerNanosecond);
+            lastRefill = now;
+            if (tokens >= 1.0) {
+                tokens -= 1.0;
+                return true;
+            }
+            if (sampleOneIn > 0 && ++overLimit >= sampleOneIn) {
+                overLimit = 0;
+                return true;
+            }
+            suppressed++;
+            if (level > suppressedLevel) {
+                suppressedLevel = level;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.darkyen.tproll;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * {@link CallerLocations#findCaller()} implementation for Java 9 and newer.
+ * StackWalker is accessed through method handles, so that the library still compiles and runs on Java 8.
+ */
+final class StackWalkerCallerFinder {
+
+    /** StackWalker.getInstance() */
+    private static final @Nullable Object WALKER;
+    /** (StackWalker, Function) -> Object: StackWalker.walk */
+    private static final @Nullable MethodHandle WALK;
+    /** (StackFrame) -> String: StackFrame.getClassName */
+    private static final @Nullable MethodHandle GET_CLASS_NAME;
+    /** (StackFrame) -> StackTraceElement: StackFrame.toStackTraceElement */
+    private static final @Nullable MethodHandle TO_STACK_TRACE_ELEMENT;
+
+    static {
+        Object walker = null;
+        MethodHandle walk = null;
+        MethodHandle getClassName = null;
+        MethodHandle toStackTraceElement = null;
+        try {
+            final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            final Class<?> walkerClass = Class.forName("java.lang.StackWalker");
+            final Class<?> frameClass = Class.forName("java.lang.StackWalker$StackFrame");
+            walker = lookup.findStatic(walkerClass, "getInstance", MethodType.methodType(walkerClass)).invoke();
+            walk = lookup.findVirtual(walkerClass, "walk", MethodType.methodType(Object.class, Function.class))
+                    .asType(MethodType.methodType(Object.class, Object.class, Function.class));
+            getClassName = lookup.findVirtual(frameClass, "getClassName", MethodType.methodType(String.class))
+                    .asType(MethodType.methodType(String.class, Object.class));
+            toStackTraceElement = lookup.findVirtual(frameClass, "toStackTraceElement", MethodType.methodType(StackTraceElement.class))
+                    .asType(MethodType.methodType(StackTraceElement.class, Object.class));
+        } catch (Throwable ignored) {
+            // Java 8, there is no StackWalker
+            walker = null;
+        }
+        WALKER = walker;
+        WALK = walk;
+        GET_CLASS_NAME = getClassName;
+        TO_STACK_TRACE_ELEMENT = toStackTraceElement;
+    }
+
+    /** Whether {@link #findCaller()} can be used */
+    static final boolean AVAILABLE = WALKER != null;
+
+    private static final @NotNull Function<Stream<Object>, StackTraceElement> FIND_CALLER =
+            frames -> frames.filter(frame -> !CallerLocations.isLoggingFrame(className(frame)))
+                    .findFirst()
+                    .map(StackWalkerCallerFinder::toStackTraceElement)
+                    .orElse(null);
+
+    private static @NotNull String className(@NotNull Object frame) {
+        try {
+            //noinspection ConstantConditions
+            return (String) GET_CLASS_NAME.invokeExact(frame);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    private static @NotNull StackTraceElement toStackTraceElement(@NotNull Object frame) {
+        try {
+            //noinspection ConstantConditions
+            return (StackTraceElement) TO_STACK_TRACE_ELEMENT.invokeExact(frame);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /** Only when {@link #AVAILABLE}. */
+    static @Nullable StackTraceElement findCaller() {
+        // Only the frames up to the caller are materialized
+        try {
+            //noinspection ConstantConditions
+            return (StackTraceElement) (Object) WALK.invokeExact(WALKER, (Function<?, ?>) FIND_CALLER);
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+
+    private StackWalkerCallerFinder() {}
+}
@@ -3,15 +3,20 @@ package com.darkyen.tproll;
 import com.darkyen.tproll.logfunctions.SimpleLogFunction;
 import com.darkyen.tproll.util.LevelChangeListener;
 import com.darkyen.tproll.util.TimeProvider;
+import com.darkyen.tproll.util.VirtualThreads;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.Marker;
+import org.slf4j.event.Level;
+import org.slf4j.spi.LoggingEventBuilder;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-
-import static com.darkyen.tproll.util.PrettyPrinter.patternSubstituteInto;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Lightweight, GC friendly and thread-safe (as long as the logging function is thread-safe)
@@ -26,15 +31,69 @@ public final class TPLogger implements Logger {
 
     //region Non-static
     private final @NotNull String name;
+    /** Name used to resolve log level overrides, see {@link TPLoggerFactory#setLogLevel(String, byte)} */
+    private final @NotNull String levelName;
+    /** Level resolved from the global log level and overrides, updated by {@link #updateLevels()} when they change.
+     * Checked only after {@link LevelGuards}, which are usually folded into a constant by the JIT. */
+    private volatile byte effectiveLevel;
+    /** Non-null when location capture is enabled, see {@link #setLocationCapture(boolean)} */
+    private volatile @Nullable CallerLocations callerLocations;
 
     public TPLogger(@NotNull String name) {
+        this(name, name);
+    }
+
+    /**
+     * @param name which is shown in the log
+     * @param levelName full (usually class) name, used to resolve level overrides
+     */
+    public TPLogger(@NotNull String name, @NotNull String levelName) {
         this.name = name;
+        this.levelName = levelName;
+        registerLogger(this);
     }
 
     @Override
     public @NotNull String getName() {
         return name;
     }
+
+    /** @return the log level that currently applies to this logger, considering overrides */
+    public byte getEffectiveLogLevel() {
+        return effectiveLevel;
+    }
+
+    /**
+     * Enable or disable capturing of the source code location (class, method and line) from which this logger is called.
+     * The location is available through {@link LogEvent#getLocation()}.
+     * Disabled by default, because finding the location requires walking the stack.
+     * Locations are cached by message template, so only the first call with each template pays the full cost.
+     * This is approximate: when the same template is logged from several places through this logger,
+     * all of them get the location of the first one. Use {@link #setLocationCapture(boolean, boolean)} to disable the cache.
+     */
+    public void setLocationCapture(boolean enabled) {
+        setLocationCapture(enabled, true);
+    }
+
+    /**
+     * @param enabled whether to capture the location, see {@link #setLocationCapture(boolean)}
+     * @param cached whether to cache the locations by message template, false to walk the stack for each message and always get the exact location
+     */
+    public void setLocationCapture(boolean enabled, boolean cached) {
+        if (enabled) {
+            final CallerLocations callerLocations = this.callerLocations;
+            if (callerLocations == null || callerLocations.isCached() != cached) {
+                this.callerLocations = new CallerLocations(cached);
+            }
+        } else {
+            callerLocations = null;
+        }
+    }
+
+    /** @return whether location capture is enabled, see {@link #setLocationCapture(boolean)} */
+    public boolean isLocationCapture() {
+        return callerLocations != null;
+    }
     //endregion
 
     public static final byte TRACE = 1;
@@ -45,22 +104,27 @@ public final class TPLogger implements Logger {
     /** Special level which always gets through, used for logging-related messages. */
     public static final byte LOG = 6;
 
-    private static @NotNull LogFunction logFunction = SimpleLogFunction.EMERGENCY_LOG_FUNCTION;
+    // Initialized first, loggers may get created during static initialization (LevelChangeListener.LOG)
+    private static volatile byte logLevel = INFO;
+
+    /** Guards {@link #logLevel}, {@link #levelOverrides} and {@link #loggers}. */
+    private static final @NotNull Object LEVEL_LOCK = new Object();
+    private static final @NotNull LevelTree levelOverrides = new LevelTree();
+    /** All live loggers, so that their {@link #effectiveLevel} can be updated when levels change. */
+    private static final @NotNull ArrayList<@NotNull WeakReference<@NotNull TPLogger>> loggers = new ArrayList<>();
+    private static final @NotNull ReferenceQueue<@NotNull TPLogger> collectedLoggers = new ReferenceQueue<>();
+
+    private static volatile @NotNull LogFunction logFunction = SimpleLogFunction.EMERGENCY_LOG_FUNCTION;
     static {
         logFunction.start();
     }
     private static @NotNull LevelChangeListener levelChangeListener = LevelChangeListener.LOG;
     private static @NotNull TimeProvider timeProvider = TimeProvider.CURRENT_TIME_PROVIDER;
+    private static volatile @Nullable RateLimiter rateLimiter = null;
+    private static volatile boolean congestionAware = false;
 
     private static @Nullable Thread shutdownHook = null;
 
-    private static byte logLevel = INFO;
-    private static boolean trace = false;
-    private static boolean debug = false;
-    private static boolean info = true;
-    private static boolean warn = true;
-    private static boolean error = true;
-
     public static @NotNull String levelName(byte logLevel){
         switch (logLevel) {
             case TRACE: return "TRACE";
@@ -74,48 +138,85 @@ public final class TPLogger implements Logger {
     }
 
     public static void TRACE() {
-        if (logLevel == TRACE) return;
-        logLevel = TRACE;
-        trace = debug = info = warn = error = true;
-        levelChangeListener.levelChanged(TRACE);
+        setLogLevel(TRACE);
     }
 
     public static void DEBUG() {
-        if (logLevel == DEBUG) return;
-        logLevel = DEBUG;
-        trace = false;
-        debug = info = warn = error = true;
-        levelChangeListener.levelChanged(DEBUG);
+        setLogLevel(DEBUG);
     }
 
     public static void INFO() {
-        if (logLevel == INFO) return;
-        logLevel = INFO;
-        trace = debug = false;
-        info = warn = error = true;
-        levelChangeListener.levelChanged(INFO);
+        setLogLevel(INFO);
     }
 
     public static void WARN() {
-        if (logLevel == WARN) return;
-        logLevel = WARN;
-        trace = debug = info = false;
-        warn = error = true;
-        levelChangeListener.levelChanged(WARN);
+        setLogLevel(WARN);
     }
 
     public static void ERROR() {
-        if (logLevel == ERROR) return;
-        logLevel = ERROR;
-        trace = debug = info = warn = false;
-        error = true;
-        levelChangeListener.levelChanged(ERROR);
+        setLogLevel(ERROR);
+    }
+
+    private static void setLogLevel(byte level) {
+        synchronized (LEVEL_LOCK) {
+            if (logLevel == level) return;
+            logLevel = level;
+            updateLevels();
+        }
+        levelChangeListener.levelChanged(level);
     }
 
     public static byte getLogLevel(){
         return logLevel;
     }
 
+    /** @see TPLoggerFactory#setLogLevel(String, byte) */
+    static void setLogLevelOverride(@NotNull String namePrefix, byte level) {
+        if (namePrefix.isEmpty()) throw new IllegalArgumentException("namePrefix may not be empty, use TPLogger.INFO() etc. to change the global level");
+        if (level != 0 && (level < TRACE || level > ERROR)) throw new IllegalArgumentException("Invalid level: "+level);
+        synchronized (LEVEL_LOCK) {
+            levelOverrides.set(namePrefix, level);
+            updateLevels();
+        }
+    }
+
+    /** @return log level which applies to logger with given full name */
+    static byte levelFor(@NotNull String levelName) {
+        return levelOverrides.resolve(levelName, logLevel);
+    }
+
+    private static void registerLogger(@NotNull TPLogger logger) {
+        synchronized (LEVEL_LOCK) {
+            expungeCollectedLoggers();
+            logger.effectiveLevel = levelOverrides.resolve(logger.levelName, logLevel);
+            loggers.add(new WeakReference<>(logger, collectedLoggers));
+        }
+    }
+
+    private static void expungeCollectedLoggers() {
+        if (collectedLoggers.poll() == null) {
+            return;
+        }
+        //noinspection StatementWithEmptyBody
+        while (collectedLoggers.poll() != null);
+        loggers.removeIf(ref -> ref.get() == null);
+    }
+
+    /** Re-resolve {@link #effectiveLevel} of all loggers and update {@link LevelGuards}. Must hold {@link #LEVEL_LOCK}. */
+    private static void updateLevels() {
+        expungeCollectedLoggers();
+        final LevelTree levelOverrides = TPLogger.levelOverrides;
+        final byte logLevel = TPLogger.logLevel;
+        LevelGuards.update(levelOverrides.minLevel(logLevel));
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < loggers.size(); i++) {
+            final TPLogger logger = loggers.get(i).get();
+            if (logger != null) {
+                logger.effectiveLevel = levelOverrides.resolve(logger.levelName, logLevel);
+            }
+        }
+    }
+
     /**
      * Like {@link #setLogFunction(LogFunction, boolean)} with setupShutdownHook=true.
      */
@@ -185,342 +286,383 @@ public final class TPLogger implements Logger {
         return timeProvider;
     }
 
+    /**
+     * Set the rate limiter which limits the amount of messages logged from each call site, for all loggers.
+     * Messages suppressed by the previous limiter, which were not summarized yet, are summarized now.
+     * @param rateLimiter to use or null to not limit (default)
+     */
+    public static synchronized void setRateLimiter(@Nullable RateLimiter rateLimiter) {
+        final RateLimiter previous = TPLogger.rateLimiter;
+        if (previous == rateLimiter) {
+            return;
+        }
+        if (rateLimiter != null) {
+            rateLimiter.start();
+        }
+        TPLogger.rateLimiter = rateLimiter;
+        if (previous != null) {
+            previous.stop();
+        }
+    }
+
+    public static @Nullable RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * When enabled, {@link #isTraceEnabled()} and {@link #isDebugEnabled()} (and their marker variants) return false
+     * while the log function is congested (see {@link LogFunction#isCongested()}), so that the callers which check them
+     * skip the optional logging work. Messages logged without the check are not affected. Default is false.
+     */
+    public static void setCongestionAware(boolean congestionAware) {
+        TPLogger.congestionAware = congestionAware;
+    }
+
+    public static boolean isCongestionAware() {
+        return congestionAware;
+    }
+
+    /** @return true if {@link #setCongestionAware(boolean)} and the log function is congested */
+    private static boolean isCongested() {
+        return congestionAware && logFunction.isCongested();
+    }
+
     //region isEnabled
     @Override
     public boolean isTraceEnabled() {
-        return trace && logFunction.isEnabled(TRACE, null);
+        return LevelGuards.trace() && effectiveLevel <= TRACE && logFunction.isEnabled(TRACE, null) && !isCongested();
     }
 
     @Override
     public boolean isTraceEnabled(@Nullable Marker marker) {
-        return trace && logFunction.isEnabled(TRACE, marker);
+        return LevelGuards.trace() && effectiveLevel <= TRACE && logFunction.isEnabled(TRACE, marker) && !isCongested();
     }
 
     @Override
     public boolean isDebugEnabled() {
-        return debug && logFunction.isEnabled(DEBUG, null);
+        return LevelGuards.debug() && effectiveLevel <= DEBUG && logFunction.isEnabled(DEBUG, null) && !isCongested();
     }
 
     @Override
     public boolean isDebugEnabled(@Nullable Marker marker) {
-        return debug && logFunction.isEnabled(DEBUG, marker);
+        return LevelGuards.debug() && effectiveLevel <= DEBUG && logFunction.isEnabled(DEBUG, marker) && !isCongested();
     }
 
     @Override
     public boolean isInfoEnabled() {
-        return info && logFunction.isEnabled(INFO, null);
+        return LevelGuards.info() && effectiveLevel <= INFO && logFunction.isEnabled(INFO, null);
     }
 
     @Override
     public boolean isInfoEnabled(@Nullable Marker marker) {
-        return info && logFunction.isEnabled(INFO, marker);
+        return LevelGuards.info() && effectiveLevel <= INFO && logFunction.isEnabled(INFO, marker);
     }
 
     @Override
     public boolean isWarnEnabled() {
-        return warn && logFunction.isEnabled(WARN, null);
+        return LevelGuards.warn() && effectiveLevel <= WARN && logFunction.isEnabled(WARN, null);
     }
 
     @Override
     public boolean isWarnEnabled(@Nullable Marker marker) {
-        return warn && logFunction.isEnabled(WARN, marker);
+        return LevelGuards.warn() && effectiveLevel <= WARN && logFunction.isEnabled(WARN, marker);
     }
 
     @Override
     public boolean isErrorEnabled() {
-        return error && logFunction.isEnabled(ERROR, null);
+        return LevelGuards.error() && effectiveLevel <= ERROR && logFunction.isEnabled(ERROR, null);
     }
 
     @Override
     public boolean isErrorEnabled(@Nullable Marker marker) {
-        return error && logFunction.isEnabled(ERROR, marker);
+        return LevelGuards.error() && effectiveLevel <= ERROR && logFunction.isEnabled(ERROR, marker);
     }
     //endregion
 
     //region Trace
     @Override
     public void trace(@NotNull String msg) {
-        if (trace) _log(name, timeProvider.timeMillis(), TRACE, null, msg);
+        if (LevelGuards.trace() && effectiveLevel <= TRACE) _log(name, timeProvider.timeMillis(), TRACE, null, msg);
     }
 
     @Override
     public void trace(@NotNull String format, @Nullable Object arg) {
-        if (trace) _log(name, timeProvider.timeMillis(), TRACE, null, format, arg);
+        if (LevelGuards.trace() && effectiveLevel <= TRACE) _log(name, timeProvider.timeMillis(), TRACE, null, format, arg);
     }
 
     @Override
     public void trace(@NotNull String format, @Nullable Object argA, @Nullable Object argB) {
-        if (trace) _log(name, timeProvider.timeMillis(), TRACE, null, format, argA, argB);
+        if (LevelGuards.trace() && effectiveLevel <= TRACE) _log(name, timeProvider.timeMillis(), TRACE, null, format, argA, argB);
     }
 
     @Override
     public void trace(@NotNull String format, @Nullable Object @NotNull ... arguments) {
-        if (trace) _log(name, timeProvider.timeMillis(), TRACE, null, format, arguments);
+        if (LevelGuards.trace() && effectiveLevel <= TRACE) _log(name, timeProvider.timeMillis(), TRACE, null, format, arguments);
     }
 
     @Override
     public void trace(@NotNull String msg, @Nullable Throwable t) {
-        if (trace) _log(name, timeProvider.timeMillis(), TRACE, null, msg, t);
+        if (LevelGuards.trace() && effectiveLevel <= TRACE) _log(name, timeProvider.timeMillis(), TRACE, null, msg, t);
     }
 
     @Override
     public void trace(@Nullable Marker marker, @NotNull String msg) {
-        if (trace) _log(name, timeProvider.timeMillis(), TRACE, marker, msg);
+        if (LevelGuards.trace() && effectiveLevel <= TRACE) _log(name, timeProvider.timeMillis(), TRACE, marker, msg);
     }
 
     @Override
     public void trace(@Nullable Marker marker, @NotNull String format, @Nullable Object arg) {
-        if (trace) _log(name, timeProvider.timeMillis(), TRACE, marker, format, arg);
+        if (LevelGuards.trace() && effectiveLevel <= TRACE) _log(name, timeProvider.timeMillis(), TRACE, marker, format, arg);
     }
 
     @Override
     public void trace(@Nullable Marker marker, @NotNull String format, @Nullable Object arg1, @Nullable Object arg2) {
-        if (trace) _log(name, timeProvider.timeMillis(), TRACE, marker, format, arg1, arg2);
+        if (LevelGuards.trace() && effectiveLevel <= TRACE) _log(name, timeProvider.timeMillis(), TRACE, marker, format, arg1, arg2);
     }
 
     @Override
     public void trace(@Nullable Marker marker, @NotNull String format, Object @NotNull ... argArray) {
-        if (trace) _log(name, timeProvider.timeMillis(), TRACE, marker, format, argArray);
+        if (LevelGuards.trace() && effectiveLevel <= TRACE) _log(name, timeProvider.timeMillis(), TRACE, marker, format, argArray);
     }
 
     @Override
     public void trace(@Nullable Marker marker, @NotNull String msg, @Nullable Throwable t) {
-        if (trace) _log(name, timeProvider.timeMillis(), TRACE, marker, msg, t);
+        if (LevelGuards.trace() && effectiveLevel <= TRACE) _log(name, timeProvider.timeMillis(), TRACE, marker, msg, t);
     }
     //endregion
 
     //region Debug
     @Override
     public void debug(@NotNull String msg) {
-        if (debug) _log(name, timeProvider.timeMillis(), DEBUG, null, msg);
+        if (LevelGuards.debug() && effectiveLevel <= DEBUG) _log(name, timeProvider.timeMillis(), DEBUG, null, msg);
     }
 
     @Override
     public void debug(@NotNull String format, @Nullable Object arg) {
-        if (debug) _log(name, timeProvider.timeMillis(), DEBUG, null, format, arg);
+        if (LevelGuards.debug() && effectiveLevel <= DEBUG) _log(name, timeProvider.timeMillis(), DEBUG, null, format, arg);
     }
 
     @Override
     public void debug(@NotNull String format, @Nullable Object argA, @Nullable Object argB) {
-        if (debug) _log(name, timeProvider.timeMillis(), DEBUG, null, format, argA, argB);
+        if (LevelGuards.debug() && effectiveLevel <= DEBUG) _log(name, timeProvider.timeMillis(), DEBUG, null, format, argA, argB);
     }
 
     @Override
     public void debug(@NotNull String format, @Nullable Object @NotNull ... arguments) {
-        if (debug) _log(name, timeProvider.timeMillis(), DEBUG, null, format, arguments);
+        if (LevelGuards.debug() && effectiveLevel <= DEBUG) _log(name, timeProvider.timeMillis(), DEBUG, null, format, arguments);
     }
 
     @Override
     public void debug(@NotNull String msg, @Nullable Throwable t) {
-        if (debug) _log(name, timeProvider.timeMillis(), DEBUG, null, msg, t);
+        if (LevelGuards.debug() && effectiveLevel <= DEBUG) _log(name, timeProvider.timeMillis(), DEBUG, null, msg, t);
     }
 
 
     @Override
     public void debug(@Nullable Marker marker, @NotNull String msg) {
-        if (debug) _log(name, timeProvider.timeMillis(), DEBUG, marker, msg);
+        if (LevelGuards.debug() && effectiveLevel <= DEBUG) _log(name, timeProvider.timeMillis(), DEBUG, marker, msg);
     }
 
     @Override
     public void debug(@Nullable Marker marker, @NotNull String format, @Nullable Object arg) {
-        if (debug) _log(name, timeProvider.timeMillis(), DEBUG, marker, format, arg);
+        if (LevelGuards.debug() && effectiveLevel <= DEBUG) _log(name, timeProvider.timeMillis(), DEBUG, marker, format, arg);
     }
 
     @Override
     public void debug(@Nullable Marker marker, @NotNull String format, @Nullable Object arg1, @Nullable Object arg2) {
-        if (debug) _log(name, timeProvider.timeMillis(), DEBUG, marker, format, arg1, arg2);
+        if (LevelGuards.debug() && effectiveLevel <= DEBUG) _log(name, timeProvider.timeMillis(), DEBUG, marker, format, arg1, arg2);
     }
 
     @Override
     public void debug(@Nullable Marker marker, @NotNull String format, @Nullable Object @NotNull ... arguments) {
-        if (debug) _log(name, timeProvider.timeMillis(), DEBUG, marker, format, arguments);
+        if (LevelGuards.debug() && effectiveLevel <= DEBUG) _log(name, timeProvider.timeMillis(), DEBUG, marker, format, arguments);
     }
 
     @Override
     public void debug(@Nullable Marker marker, @NotNull String msg, @Nullable Throwable t) {
-        if (debug) _log(name, timeProvider.timeMillis(), DEBUG, marker, msg, t);
+        if (LevelGuards.debug() && effectiveLevel <= DEBUG) _log(name, timeProvider.timeMillis(), DEBUG, marker, msg, t);
     }
     //endregion
 
     //region Info
     @Override
     public void info(@NotNull String msg) {
-        if (info) _log(name, timeProvider.timeMillis(), INFO, null, msg);
+        if (LevelGuards.info() && effectiveLevel <= INFO) _log(name, timeProvider.timeMillis(), INFO, null, msg);
     }
 
     @Override
     public void info(@NotNull String format, @Nullable Object arg) {
-        if (info) _log(name, timeProvider.timeMillis(), INFO, null, format, arg);
+        if (LevelGuards.info() && effectiveLevel <= INFO) _log(name, timeProvider.timeMillis(), INFO, null, format, arg);
     }
 
     @Override
     public void info(@NotNull String format, @Nullable Object argA, @Nullable Object argB) {
-        if (info) _log(name, timeProvider.timeMillis(), INFO, null, format, argA, argB);
+        if (LevelGuards.info() && effectiveLevel <= INFO) _log(name, timeProvider.timeMillis(), INFO, null, format, argA, argB);
     }
 
     @Override
     public void info(@NotNull String format, @Nullable Object @NotNull ... arguments) {
-        if (info) _log(name, timeProvider.timeMillis(), INFO, null, format, arguments);
+        if (LevelGuards.info() && effectiveLevel <= INFO) _log(name, timeProvider.timeMillis(), INFO, null, format, arguments);
     }
 
     @Override
     public void info(@NotNull String msg, @Nullable Throwable t) {
-        if (info) _log(name, timeProvider.timeMillis(), INFO, null, msg, t);
+        if (LevelGuards.info() && effectiveLevel <= INFO) _log(name, timeProvider.timeMillis(), INFO, null, msg, t);
     }
 
     @Override
     public void info(@Nullable Marker marker, @NotNull String msg) {
-        if (info) _log(name, timeProvider.timeMillis(), INFO, marker, msg);
+        if (LevelGuards.info() && effectiveLevel <= INFO) _log(name, timeProvider.timeMillis(), INFO, marker, msg);
     }
 
     @Override
     public void info(@Nullable Marker marker, @NotNull String format, @Nullable Object arg) {
-        if (info) _log(name, timeProvider.timeMillis(), INFO, marker, format, arg);
+        if (LevelGuards.info() && effectiveLevel <= INFO) _log(name, timeProvider.timeMillis(), INFO, marker, format, arg);
     }
 
     @Override
     public void info(@Nullable Marker marker, @NotNull String format, @Nullable Object arg1, @Nullable Object arg2) {
-        if (info) _log(name, timeProvider.timeMillis(), INFO, marker, format, arg1, arg2);
+        if (LevelGuards.info() && effectiveLevel <= INFO) _log(name, timeProvider.timeMillis(), INFO, marker, format, arg1, arg2);
     }
 
     @Override
     public void info(@Nullable Marker marker, @NotNull String format, @Nullable Object @NotNull ... arguments) {
-        if (info) _log(name, timeProvider.timeMillis(), INFO, marker, format, arguments);
+        if (LevelGuards.info() && effectiveLevel <= INFO) _log(name, timeProvider.timeMillis(), INFO, marker, format, arguments);
     }
 
     @Override
     public void info(@Nullable Marker marker, @NotNull String msg, @Nullable Throwable t) {
-        if (info) _log(name, timeProvider.timeMillis(), INFO, marker, msg, t);
+        if (LevelGuards.info() && effectiveLevel <= INFO) _log(name, timeProvider.timeMillis(), INFO, marker, msg, t);
     }
     //endregion
 
     //region Warn
     @Override
     public void warn(@NotNull String msg) {
-        if (warn) _log(name, timeProvider.timeMillis(), WARN, null, msg);
+        if (LevelGuards.warn() && effectiveLevel <= WARN) _log(name, timeProvider.timeMillis(), WARN, null, msg);
     }
 
     @Override
     public void warn(@NotNull String format, @Nullable Object arg) {
-        if (warn) _log(name, timeProvider.timeMillis(), WARN, null, format, arg);
+        if (LevelGuards.warn() && effectiveLevel <= WARN) _log(name, timeProvider.timeMillis(), WARN, null, format, arg);
     }
 
     @Override
     public void warn(@NotNull String format, @Nullable Object @NotNull ... arguments) {
-        if (warn) _log(name, timeProvider.timeMillis(), WARN, null, format, arguments);
+        if (LevelGuards.warn() && effectiveLevel <= WARN) _log(name, timeProvider.timeMillis(), WARN, null, format, arguments);
     }
 
     @Override
     public void warn(@NotNull String format, @Nullable Object argA, @Nullable Object argB) {
-        if (warn) _log(name, timeProvider.timeMillis(), WARN, null, format, argA, argB);
+        if (LevelGuards.warn() && effectiveLevel <= WARN) _log(name, timeProvider.timeMillis(), WARN, null, format, argA, argB);
     }
 
     @Override
     public void warn(@NotNull String msg, @Nullable Throwable t) {
-        if (warn) _log(name, timeProvider.timeMillis(), WARN, null, msg, t);
+        if (LevelGuards.warn() && effectiveLevel <= WARN) _log(name, timeProvider.timeMillis(), WARN, null, msg, t);
     }
 
     @Override
     public void warn(@Nullable Marker marker, @NotNull String msg) {
-        if (warn) _log(name, timeProvider.timeMillis(), WARN, marker, msg);
+        if (LevelGuards.warn() && effectiveLevel <= WARN) _log(name, timeProvider.timeMillis(), WARN, marker, msg);
     }
 
     @Override
     public void warn(@Nullable Marker marker, @NotNull String format, @Nullable Object arg) {
-        if (warn) _log(name, timeProvider.timeMillis(), WARN, marker, format, arg);
+        if (LevelGuards.warn() && effectiveLevel <= WARN) _log(name, timeProvider.timeMillis(), WARN, marker, format, arg);
     }
 
     @Override
     public void warn(@Nullable Marker marker, @NotNull String format, @Nullable Object arg1, @Nullable Object arg2) {
-        if (warn) _log(name, timeProvider.timeMillis(), WARN, marker, format, arg1, arg2);
+        if (LevelGuards.warn() && effectiveLevel <= WARN) _log(name, timeProvider.timeMillis(), WARN, marker, format, arg1, arg2);
     }
 
     @Override
     public void warn(@Nullable Marker marker, @NotNull String format, @Nullable Object @NotNull ... arguments) {
-        if (warn) _log(name, timeProvider.timeMillis(), WARN, marker, format, arguments);
+        if (LevelGuards.warn() && effectiveLevel <= WARN) _log(name, timeProvider.timeMillis(), WARN, marker, format, arguments);
     }
 
     @Override
     public void warn(@Nullable Marker marker, @NotNull String msg, @Nullable Throwable t) {
-        if (warn) _log(name, timeProvider.timeMillis(), WARN, marker, msg, t);
+        if (LevelGuards.warn() && effectiveLevel <= WARN) _log(name, timeProvider.timeMillis(), WARN, marker, msg, t);
     }
     //endregion
 
     //region Error
     @Override
     public void error(@NotNull String msg) {
-        if (error) _log(name, timeProvider.timeMillis(), ERROR, null, msg);
+        if (LevelGuards.error() && effectiveLevel <= ERROR) _log(name, timeProvider.timeMillis(), ERROR, null, msg);
     }
 
     @Override
     public void error(@NotNull String format, @Nullable Object arg) {
-        if (error) _log(name, timeProvider.timeMillis(), ERROR, null, format, arg);
+        if (LevelGuards.error() && effectiveLevel <= ERROR) _log(name, timeProvider.timeMillis(), ERROR, null, format, arg);
     }
 
     @Override
     public void error(@NotNull String format, @Nullable Object argA, @Nullable Object argB) {
-        if (error) _log(name, timeProvider.timeMillis(), ERROR, null, format, argA, argB);
+        if (LevelGuards.error() && effectiveLevel <= ERROR) _log(name, timeProvider.timeMillis(), ERROR, null, format, argA, argB);
     }
 
     @Override
     public void error(@NotNull String format, @Nullable Object @NotNull ... arguments) {
-        if (error) _log(name, timeProvider.timeMillis(), ERROR, null, format, arguments);
+        if (LevelGuards.error() && effectiveLevel <= ERROR) _log(name, timeProvider.timeMillis(), ERROR, null, format, arguments);
     }
 
     @Override
     public void error(@NotNull String msg, @Nullable Throwable t) {
-        if (error) _log(name, timeProvider.timeMillis(), ERROR, null, msg, t);
+        if (LevelGuards.error() && effectiveLevel <= ERROR) _log(name, timeProvider.timeMillis(), ERROR, null, msg, t);
     }
 
     @Override
     public void error(@Nullable Marker marker, @NotNull String msg) {
-        if (error) _log(name, timeProvider.timeMillis(), ERROR, marker, msg);
+        if (LevelGuards.error() && effectiveLevel <= ERROR) _log(name, timeProvider.timeMillis(), ERROR, marker, msg);
     }
 
     @Override
     public void error(@Nullable Marker marker, @NotNull String format, @Nullable Object arg) {
-        if (error) _log(name, timeProvider.timeMillis(), ERROR, marker, format, arg);
+        if (LevelGuards.error() && effectiveLevel <= ERROR) _log(name, timeProvider.timeMillis(), ERROR, marker, format, arg);
     }
 
     @Override
     public void error(@Nullable Marker marker, @NotNull String format, @Nullable Object arg1, @Nullable Object arg2) {
-        if (error) _log(name, timeProvider.timeMillis(), ERROR, marker, format, arg1, arg2);
+        if (LevelGuards.error() && effectiveLevel <= ERROR) _log(name, timeProvider.timeMillis(), ERROR, marker, format, arg1, arg2);
     }
 
     @Override
     public void error(@Nullable Marker marker, @NotNull String format, @Nullable Object @NotNull ... arguments) {
-        if (error) _log(name, timeProvider.timeMillis(), ERROR, marker, format, arguments);
+        if (LevelGuards.error() && effectiveLevel <= ERROR) _log(name, timeProvider.timeMillis(), ERROR, marker, format, arguments);
     }
 
     @Override
     public void error(@Nullable Marker marker, @NotNull String msg, @Nullable Throwable t) {
-        if (error) _log(name, timeProvider.timeMillis(), ERROR, marker, msg, t);
+        if (LevelGuards.error() && effectiveLevel <= ERROR) _log(name, timeProvider.timeMillis(), ERROR, marker, msg, t);
     }
     //endregion
 
     //region Log
     public void log(byte level, @Nullable Marker marker, @NotNull String msg) {
-        if (level < TPLogger.logLevel) return;
+        if (level < effectiveLevel) return;
         _log(name, timeProvider.timeMillis(), level, marker, msg);
     }
 
     public void log(byte level, @Nullable Marker marker, @NotNull String format, @Nullable Object arg) {
-        if (level < TPLogger.logLevel) return;
+        if (level < effectiveLevel) return;
         _log(name, timeProvider.timeMillis(), level, marker, format, arg);
     }
 
     public void log(byte level, @Nullable Marker marker, @NotNull String format, @Nullable Object argA, @Nullable Object argB) {
-        if (level < TPLogger.logLevel) return;
+        if (level < effectiveLevel) return;
         _log(name, timeProvider.timeMillis(), level, marker, format, argA, argB);
     }
 
     public void log(byte level, @Nullable Marker marker, @NotNull String format, @Nullable Object @NotNull ... arguments) {
-        if (level < TPLogger.logLevel) return;
+        if (level < effectiveLevel) return;
         _log(name, timeProvider.timeMillis(), level, marker, format, arguments);
     }
 
     public void log(byte level, @Nullable Marker marker, @NotNull String msg, @Nullable Throwable t) {
-        if (level < TPLogger.logLevel) return;
+        if (level < effectiveLevel) return;
         _log(name, timeProvider.timeMillis(), level, marker, msg, t);
     }
     //endregion
@@ -533,68 +675,131 @@ public final class TPLogger implements Logger {
      * @param time time, as provided by {@link TimeProvider}
      */
     public void logCustom(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull String msg) {
-        if (level < TPLogger.logLevel) return;
+        if (level < levelFor(name)) return;
         _log(name, time, level, marker, msg);
     }
 
     public void logCustom(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull String format, @Nullable Object arg) {
-        if (level < TPLogger.logLevel) return;
+        if (level < levelFor(name)) return;
         _log(name, time, level, marker, format, arg);
     }
 
     public void logCustom(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull String format, @Nullable Object argA, @Nullable Object argB) {
-        if (level < TPLogger.logLevel) return;
+        if (level < levelFor(name)) return;
         _log(name, time, level, marker, format, argA, argB);
     }
 
     public void logCustom(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull String format, @Nullable Object @NotNull ... arguments) {
-        if (level < TPLogger.logLevel) return;
+        if (level < levelFor(name)) return;
         _log(name, time, level, marker, format, arguments);
     }
 
     public void logCustom(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull String msg, @Nullable Throwable t) {
-        if (level < TPLogger.logLevel) return;
+        if (level < levelFor(name)) return;
         _log(name, time, level, marker, msg, t);
     }
     //endregion
     
+    //region Fluent
+
+    /**
+     * Used by SLF4J 2 fluent API, returns a reused builder. Disabled levels are filtered before this is called.
+     * Only this method refers to SLF4J 2 types, so that they are not needed when bound to SLF4J 1.7.
+     */
+    @Override
+    public @NotNull LoggingEventBuilder makeLoggingEventBuilder(@NotNull Level level) {
+        return TPLoggingEventBuilder.start(this, level);
+    }
+    //endregion
+
     //------------------------------------- INTERNAL ----------------------------------------------------
 
+    /** Log the event filled by {@link TPLoggingEventBuilder}, unless filtered. The builder clears it afterwards. */
+    void logBuilt(@NotNull LogEvent event) {
+        final String template = event.getTemplate().toString();
+        final RateLimiter rateLimiter = TPLogger.rateLimiter;
+        if (!logFunction.isEnabled(event.getLevel(), event.getMarker())
+                || (rateLimiter != null && !rateLimiter.permit(this, template, event.getLevel()))) {
+            return;
+        }
+        captureContext(event, template);
+        deliver(event);
+    }
+
+    /** Pass the event to the {@link #logFunction}, or to the emergency one, if that fails. */
+    private static void deliver(@NotNull LogEvent event) {
+        if (!logFunction.log(event)) {
+            SimpleLogFunction.EMERGENCY_LOG_FUNCTION.log(event);
+        }
+    }
+
+    /** Called by {@link RateLimiter} to report messages suppressed from a call site, bypasses the limiter. */
+    void logSuppressedSummary(byte level, @NotNull String template, long suppressed, long periodMs) {
+        final ThreadLogState state = ThreadLogState.acquire();
+        final LogEvent event = state.event;
+        event.set(name, timeProvider.timeMillis(), level, null, "Suppressed {} message(s) like \"{}\" in the last {} ms");
+        event.addArgument(suppressed);
+        event.addArgument(template);
+        event.addArgument(periodMs);
+        event.setMDC(TPMDCAdapter.current());
+        state.doLog();
+    }
+
     private void _log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull String msg) {
         if(!logFunction.isEnabled(level, marker)) return;
-        final ThreadLogState state = ThreadLogState.INSTANCE.get();
-        final ArrayList<@Nullable Object> arguments = state.arguments;
-        state.doLog(name, time, level, marker, msg);
+        final RateLimiter rateLimiter = TPLogger.rateLimiter;
+        if (rateLimiter != null && !rateLimiter.permit(this, msg, level)) return;
+        final ThreadLogState state = ThreadLogState.acquire();
+        final LogEvent event = state.event;
+        event.set(name, time, level, marker, msg);
+        captureContext(event, msg);
+        state.doLog();
     }
 
     private void _log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull String format, @Nullable Object arg) {
         if(!logFunction.isEnabled(level, marker)) return;
-        final ThreadLogState state = ThreadLogState.INSTANCE.get();
-        final ArrayList<@Nullable Object> arguments = state.arguments;
-        arguments.add(arg);
-        state.doLog(name, time, level, marker, format);
+        final RateLimiter rateLimiter = TPLogger.rateLimiter;
+        if (rateLimiter != null && !rateLimiter.permit(this, format, level)) return;
+        final ThreadLogState state = ThreadLogState.acquire();
+        final LogEvent event = state.event;
+        event.set(name, time, level, marker, format);
+        captureContext(event, format);
+        event.addArgument(arg);
+        state.doLog();
     }
 
     private void _log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull String format, @Nullable Object argA, @Nullable Object argB) {
         if(!logFunction.isEnabled(level, marker)) return;
-        final ThreadLogState state = ThreadLogState.INSTANCE.get();
-        final ArrayList<@Nullable Object> arguments = state.arguments;
-        arguments.add(argA);
-        arguments.add(argB);
-        state.doLog(name, time, level, marker, format);
+        final RateLimiter rateLimiter = TPLogger.rateLimiter;
+        if (rateLimiter != null && !rateLimiter.permit(this, format, level)) return;
+        final ThreadLogState state = ThreadLogState.acquire();
+        final LogEvent event = state.event;
+        event.set(name, time, level, marker, format);
+        captureContext(event, format);
+        event.addArgument(argA);
+        event.addArgument(argB);
+        state.doLog();
     }
 
     private void _log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull String format, @Nullable Object @NotNull ... arguments) {
         if(!logFunction.isEnabled(level, marker)) return;
-        final ThreadLogState state = ThreadLogState.INSTANCE.get();
-        final ArrayList<@Nullable Object> args = state.arguments;
-        args.ensureCapacity(arguments.length);
-        //noinspection ManualArrayToCollectionCopy
-        for (Object argument : arguments) {
-            //noinspection UseBulkOperation
-            args.add(argument);
+        final RateLimiter rateLimiter = TPLogger.rateLimiter;
+        if (rateLimiter != null && !rateLimiter.permit(this, format, level)) return;
+        final ThreadLogState state = ThreadLogState.acquire();
+        final LogEvent event = state.event;
+        event.set(name, time, level, marker, format);
+        captureContext(event, format);
+        event.addArguments(arguments);
+        state.doLog();
+    }
+
+    /** Fill the event with data from the calling thread: MDC and location, if enabled */
+    private void captureContext(@NotNull LogEvent event, @NotNull String template) {
+        event.setMDC(TPMDCAdapter.current());
+        final CallerLocations callerLocations = this.callerLocations;
+        if (callerLocations != null) {
+            event.setLocation(callerLocations.locate(template));
         }
-        state.doLog(name, time, level, marker, format);
     }
 
     /** Will call {@link Thread#setDefaultUncaughtExceptionHandler(Thread.UncaughtExceptionHandler)}
@@ -613,25 +818,94 @@ public final class TPLogger implements Logger {
         });
     }
 
-    private static final class ThreadLogState {
-        final @NotNull ArrayList<@Nullable Object> arguments = new ArrayList<>();
-        final @NotNull StringBuilder sb = new StringBuilder(64);
-
-        void doLog(final @NotNull String name, final long time, final byte level, final @Nullable Marker marker, final @NotNull String message) {
-            final StringBuilder sb = this.sb;
-            final ArrayList<@Nullable Object> arguments = this.arguments;
+    /**
+     * Per-call logging state, reused to avoid allocation.
+     * Platform threads keep their own instance in a {@link ThreadLocal}, while virtual threads,
+     * which are numerous and short-lived, share instances through a small striped pool, see {@link #acquire()}.
+     */
+    static final class ThreadLogState {
+        final @NotNull LogEvent event = new LogEvent();
+        private boolean inUse = false;
+        /** Whether this state came from {@link #POOL} and should be returned there */
+        private boolean pooled = false;
+
+        /** Logs the {@link #event} and releases this state. */
+        void doLog() {
             try {
-                patternSubstituteInto(sb, message, arguments);
-                if (!TPLogger.logFunction.log(name, time, level, marker, sb)) {
-                    SimpleLogFunction.EMERGENCY_LOG_FUNCTION.log(name, time, level, marker, sb);
-                }
+                deliver(event);
             } finally {
-                sb.setLength(0);
-                arguments.clear();
+                release();
+            }
+        }
+
+        /** Clear the event and make this state available again. */
+        private void release() {
+            event.clear();
+            inUse = false;
+            if (pooled) {
+                returnToPool(this);
+            }
+        }
+
+        private static final @NotNull ThreadLocal<@NotNull ThreadLogState> INSTANCE = ThreadLocal.withInitial(ThreadLogState::new);
+
+        /** Pool for virtual threads, size is a power of two, so that slot index can be masked */
+        private static final @NotNull AtomicReferenceArray<@Nullable ThreadLogState> POOL;
+        private static final int POOL_MASK;
+        /** How many slots to try before giving up and allocating a new state (or dropping the released one) */
+        private static final int POOL_PROBES = 4;
+
+        static {
+            final int minSize = Math.max(Runtime.getRuntime().availableProcessors() * 2, 8);
+            final int size = Integer.highestOneBit(minSize - 1) << 1;
+            POOL = new AtomicReferenceArray<>(size);
+            POOL_MASK = size - 1;
+        }
+
+        static @NotNull ThreadLogState acquire() {
+            if (VirtualThreads.isCurrentThreadVirtual()) {
+                return acquirePooled();
+            }
+
+            final ThreadLogState state = INSTANCE.get();
+            if (state.inUse) {
+                // Something is logging while logging, don't overwrite the outer event
+                final ThreadLogState nestedState = new ThreadLogState();
+                nestedState.inUse = true;
+                return nestedState;
+            }
+            state.inUse = true;
+            return state;
+        }
+
+        private static @NotNull ThreadLogState acquirePooled() {
+            final AtomicReferenceArray<ThreadLogState> pool = POOL;
+            final int start = ThreadLocalRandom.current().nextInt();
+            for (int i = 0; i < POOL_PROBES; i++) {
+                final int slot = (start + i) & POOL_MASK;
+                final ThreadLogState state = pool.get(slot);
+                if (state != null && pool.compareAndSet(slot, state, null)) {
+                    state.inUse = true;
+                    return state;
+                }
             }
+            // Pool is (locally) empty, it will be filled on release
+            final ThreadLogState state = new ThreadLogState();
+            state.pooled = true;
+            state.inUse = true;
+            return state;
         }
 
-        static final @NotNull ThreadLocal<@NotNull ThreadLogState> INSTANCE = ThreadLocal.withInitial(ThreadLogState::new);
+        private static void returnToPool(@NotNull ThreadLogState state) {
+            final AtomicReferenceArray<ThreadLogState> pool = POOL;
+            final int start = ThreadLocalRandom.current().nextInt();
+            for (int i = 0; i < POOL_PROBES; i++) {
+                final int slot = (start + i) & POOL_MASK;
+                if (pool.get(slot) == null && pool.compareAndSet(slot, null, state)) {
+                    return;
+                }
+            }
+            // Pool is (locally) full, let the state be collected
+        }
     }
 }
-
@@ -3,6 +3,10 @@ package com.darkyen.tproll;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.ILoggerFactory;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * Instantiated by SLF4J to create {@link TPLogger} instances.
  */
@@ -10,17 +14,116 @@ import org.slf4j.ILoggerFactory;
 public final class TPLoggerFactory implements ILoggerFactory {
 
     /** When true (default), only last dot-delimited part of logger name is used.
-     * (It is assumed, that the name is of a class, with package prepended.) */
+     * (It is assumed, that the name is of a class, with package prepended.)
+     * Changing this does not affect already cached loggers. */
     public static boolean USE_SHORT_NAMES = true;
 
+    /** How should the factory cache created loggers. Default is {@link CachePolicy#STRONG}. */
+    public static @NotNull CachePolicy CACHE_POLICY = CachePolicy.STRONG;
+
+    public enum CachePolicy {
+        /** Always create a new logger. */
+        NONE,
+        /** Keep all created loggers forever. Best for applications with fixed set of loggers. */
+        STRONG,
+        /** Keep created loggers as long as they are used by someone.
+         * Best for applications which create loggers with dynamic names. */
+        WEAK,
+    }
+
+    private final @NotNull ConcurrentHashMap<@NotNull String, @NotNull TPLogger> strongCache = new ConcurrentHashMap<>();
+    private final @NotNull ConcurrentHashMap<@NotNull String, @NotNull LoggerReference> weakCache = new ConcurrentHashMap<>();
+    private final @NotNull ReferenceQueue<@NotNull TPLogger> collectedLoggers = new ReferenceQueue<>();
+
     @Override
     public @NotNull TPLogger getLogger(@NotNull String name) {
+        switch (CACHE_POLICY) {
+            case STRONG: {
+                final TPLogger logger = strongCache.get(name);
+                if (logger != null) {
+                    return logger;
+                }
+                return strongCache.computeIfAbsent(name, TPLoggerFactory::createLogger);
+            }
+            case WEAK: {
+                expungeCollectedLoggers();
+                final LoggerReference reference = weakCache.get(name);
+                TPLogger logger = reference == null ? null : reference.get();
+                if (logger != null) {
+                    return logger;
+                }
+                logger = createLogger(name);
+                final LoggerReference newReference = new LoggerReference(name, logger, collectedLoggers);
+                while (true) {
+                    final LoggerReference existingReference = weakCache.putIfAbsent(name, newReference);
+                    if (existingReference == null) {
+                        return logger;
+                    }
+                    final TPLogger existingLogger = existingReference.get();
+                    if (existingLogger != null) {
+                        return existingLogger;
+                    }
+                    // Collected, but not expunged yet
+                    weakCache.remove(name, existingReference);
+                }
+            }
+            default:
+                return createLogger(name);
+        }
+    }
+
+    private static @NotNull TPLogger createLogger(@NotNull String name) {
+        String shortName = name;
         if(USE_SHORT_NAMES){
             final int i = name.lastIndexOf('.');
             if(i != -1 && i < name.length() - 3){
-                name = name.substring(i+1);
+                // Same class names in different packages are common
+                shortName = name.substring(i+1).intern();
             }
         }
-        return new TPLogger(name);
+        return new TPLogger(shortName, name);
+    }
+
+    private void expungeCollectedLoggers() {
+        LoggerReference reference;
+        while ((reference = (LoggerReference) collectedLoggers.poll()) != null) {
+            weakCache.remove(reference.name, reference);
+        }
+    }
+
+    private static final class LoggerReference extends WeakReference<TPLogger> {
+        final @NotNull String name;
+
+        LoggerReference(@NotNull String name, @NotNull TPLogger referent, @NotNull ReferenceQueue<? super TPLogger> q) {
+            super(referent, q);
+            this.name = name;
+        }
+    }
+
+    /**
+     * Override the log level for all loggers whose full name is namePrefix, or starts with namePrefix followed by a dot.
+     * Most specific override wins, loggers without any applicable override use the global level,
+     * set by {@link TPLogger#INFO()} and similar.
+     *
+     * Existing loggers are updated immediately.
+     *
+     * @param namePrefix dot-delimited package or class name, for example "com.example.network"
+     * @param level one of {@link TPLogger#TRACE}, {@link TPLogger#DEBUG}, {@link TPLogger#INFO}, {@link TPLogger#WARN} and {@link TPLogger#ERROR}
+     */
+    public static void setLogLevel(@NotNull String namePrefix, byte level) {
+        TPLogger.setLogLevelOverride(namePrefix, level);
+    }
+
+    /**
+     * Remove override previously set by {@link #setLogLevel(String, byte)}.
+     * Overrides of more specific prefixes are not affected.
+     */
+    public static void resetLogLevel(@NotNull String namePrefix) {
+        TPLogger.setLogLevelOverride(namePrefix, (byte) 0);
+    }
+
+    /** @return log level which applies to logger with given full name */
+    public static byte getLogLevel(@NotNull String name) {
+        return TPLogger.levelFor(name);
     }
 }
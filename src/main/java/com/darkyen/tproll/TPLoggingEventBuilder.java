@@ -0,0 +1,174 @@
+package com.darkyen.tproll;
+
+import com.darkyen.tproll.util.VirtualThreads;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Marker;
+import org.slf4j.event.Level;
+import org.slf4j.spi.LoggingEventBuilder;
+
+import java.util.function.Supplier;
+
+/**
+ * {@link LoggingEventBuilder} for SLF4J 2 fluent API, which fills its own reused {@link LogEvent} directly.
+ *
+ * Each platform thread reuses its builder, once the previous one was logged, so they must not be kept around.
+ * A builder which is never logged is simply replaced by a new one, it does not hold any other logging state.
+ * Virtual threads get a new builder each time.
+ * This class is loaded only through SLF4J 2 API, so that {@link TPLogger} works with SLF4J 1.7 as well.
+ *
+ * Only the first marker is kept. Key-value pairs are passed to the {@link LogFunction} as structured data,
+ * see {@link LogEvent#getKeyValueCount()}.
+ */
+final class TPLoggingEventBuilder implements LoggingEventBuilder {
+
+    /** Builder of each platform thread, reused when it is not building anything */
+    private static final @NotNull ThreadLocal<@Nullable TPLoggingEventBuilder> CURRENT = new ThreadLocal<>();
+
+    private final @NotNull LogEvent event = new LogEvent();
+    /** Set while building, null once logged */
+    private @Nullable TPLogger logger = null;
+    private @Nullable Throwable cause = null;
+    private @NotNull String message = "";
+
+    static @NotNull LoggingEventBuilder start(@NotNull TPLogger logger, @NotNull Level level) {
+        TPLoggingEventBuilder builder;
+        if (VirtualThreads.isCurrentThreadVirtual()) {
+            builder = new TPLoggingEventBuilder();
+        } else {
+            builder = CURRENT.get();
+            if (builder == null || builder.logger != null) {
+                // Nested in another builder, or the previous one was abandoned, leave it be
+                builder = new TPLoggingEventBuilder();
+                CURRENT.set(builder);
+            }
+        }
+        builder.logger = logger;
+        builder.cause = null;
+        builder.message = "";
+        builder.event.set(logger.getName(), 0L, toTPLevel(level), null, "");
+        return builder;
+    }
+
+    private static byte toTPLevel(@NotNull Level level) {
+        switch (level) {
+            case TRACE: return TPLogger.TRACE;
+            case DEBUG: return TPLogger.DEBUG;
+            case INFO: return TPLogger.INFO;
+            case WARN: return TPLogger.WARN;
+            case ERROR:
+            default: return TPLogger.ERROR;
+        }
+    }
+
+    @Override
+    public @NotNull LoggingEventBuilder setCause(@Nullable Throwable cause) {
+        this.cause = cause;
+        return this;
+    }
+
+    @Override
+    public @NotNull LoggingEventBuilder addMarker(@Nullable Marker marker) {
+        final LogEvent event = this.event;
+        if (event.getMarker() == null) {
+            event.setMarker(marker);
+        }
+        return this;
+    }
+
+    @Override
+    public @NotNull LoggingEventBuilder addArgument(@Nullable Object p) {
+        event.addArgument(p);
+        return this;
+    }
+
+    @Override
+    public @NotNull LoggingEventBuilder addArgument(@NotNull Supplier<?> objectSupplier) {
+        // Level is already known to be enabled, no point in deferring
+        event.addArgument(objectSupplier.get());
+        return this;
+    }
+
+    @Override
+    public @NotNull LoggingEventBuilder addKeyValue(@NotNull String key, @Nullable Object value) {
+        event.addKeyValue(key, value);
+        return this;
+    }
+
+    @Override
+    public @NotNull LoggingEventBuilder addKeyValue(@NotNull String key, @NotNull Supplier<Object> valueSupplier) {
+        event.addKeyValue(key, valueSupplier.get());
+        return this;
+    }
+
+    @Override
+    public @NotNull LoggingEventBuilder setMessage(@Nullable String message) {
+        this.message = message == null ? "" : message;
+        return this;
+    }
+
+    @Override
+    public @NotNull LoggingEventBuilder setMessage(@NotNull Supplier<String> messageSupplier) {
+        return setMessage(messageSupplier.get());
+    }
+
+    @Override
+    public void log() {
+        final TPLogger logger = this.logger;
+        if (logger == null) {
+            // Already logged, builder was kept around
+            return;
+        }
+        final LogEvent event = this.event;
+        final Throwable cause = this.cause;
+        if (cause != null) {
+            // Trailing throwable is treated as a cause
+            event.addArgument(cause);
+        }
+        event.setMessage(TPLogger.getTimeProvider().timeMillis(), message);
+        try {
+            logger.logBuilt(event);
+        } finally {
+            // Only now, so that anything logging while this is logged does not reuse it
+            event.clear();
+            this.cause = null;
+            this.message = "";
+            this.logger = null;
+        }
+    }
+
+    @Override
+    public void log(@Nullable String message) {
+        setMessage(message);
+        log();
+    }
+
+    @Override
+    public void log(@Nullable String message, @Nullable Object arg) {
+        event.addArgument(arg);
+        setMessage(message);
+        log();
+    }
+
+    @Override
+    public void log(@Nullable String message, @Nullable Object arg0, @Nullable Object arg1) {
+        final LogEvent event = this.event;
+        event.addArgument(arg0);
+        event.addArgument(arg1);
+        setMessage(message);
+        log();
+    }
+
+    @Override
+    public void log(@Nullable String message, @Nullable Object @NotNull ... args) {
+        event.addArguments(args);
+        setMessage(message);
+        log();
+    }
+
+    @Override
+    public void log(@NotNull Supplier<String> messageSupplier) {
+        setMessage(messageSupplier);
+        log();
+    }
+}
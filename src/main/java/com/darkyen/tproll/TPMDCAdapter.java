@@ -0,0 +1,103 @@
+package com.darkyen.tproll;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.spi.MDCAdapter;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link MDCAdapter} which stores the context of each thread as an immutable {@link MDCMap}.
+ * Modifications replace the map, so each {@link LogEvent} can simply hold a reference to the map that was current
+ * when it was logged, see {@link LogEvent#getMDC()}.
+ */
+public final class TPMDCAdapter implements MDCAdapter {
+
+    private static final @NotNull ThreadLocal<@Nullable MDCMap> CONTEXT = new ThreadLocal<>();
+    /** Stacks of values for SLF4J 2 {@link MDCAdapter#pushByKey(String, String)}, not a part of the logged context */
+    private static final @NotNull ThreadLocal<@Nullable HashMap<String, ArrayDeque<String>>> DEQUES = new ThreadLocal<>();
+    /** Set when MDC is first modified, so that threads don't need to touch {@link #CONTEXT} when MDC is not used at all */
+    private static volatile boolean used = false;
+
+    /** @return MDC of the current thread, never null */
+    public static @NotNull MDCMap current() {
+        if (!used) {
+            return MDCMap.EMPTY;
+        }
+        final MDCMap map = CONTEXT.get();
+        return map == null ? MDCMap.EMPTY : map;
+    }
+
+    private static void set(@NotNull MDCMap map) {
+        if (map.isEmpty()) {
+            CONTEXT.remove();
+        } else {
+            used = true;
+            CONTEXT.set(map);
+        }
+    }
+
+    @Override
+    public void put(@NotNull String key, @Nullable String val) {
+        set(current().with(key, val));
+    }
+
+    @Override
+    public @Nullable String get(@NotNull String key) {
+        return current().get(key);
+    }
+
+    @Override
+    public void remove(@NotNull String key) {
+        set(current().without(key));
+    }
+
+    @Override
+    public void clear() {
+        CONTEXT.remove();
+    }
+
+    @Override
+    public @NotNull Map<String, String> getCopyOfContextMap() {
+        return current().toMap();
+    }
+
+    @Override
+    public void setContextMap(@Nullable Map<String, String> contextMap) {
+        set(MDCMap.of(contextMap));
+    }
+
+    @Override
+    public void pushByKey(@NotNull String key, @Nullable String value) {
+        HashMap<String, ArrayDeque<String>> deques = DEQUES.get();
+        if (deques == null) {
+            DEQUES.set(deques = new HashMap<>());
+        }
+        deques.computeIfAbsent(key, k -> new ArrayDeque<>()).push(value);
+    }
+
+    @Override
+    public @Nullable String popByKey(@NotNull String key) {
+        final HashMap<String, ArrayDeque<String>> deques = DEQUES.get();
+        final ArrayDeque<String> deque = deques == null ? null : deques.get(key);
+        return deque == null ? null : deque.poll();
+    }
+
+    @Override
+    public @Nullable Deque<String> getCopyOfDequeByKey(@NotNull String key) {
+        final HashMap<String, ArrayDeque<String>> deques = DEQUES.get();
+        final ArrayDeque<String> deque = deques == null ? null : deques.get(key);
+        return deque == null ? null : new ArrayDeque<>(deque);
+    }
+
+    @Override
+    public void clearDequeByKey(@NotNull String key) {
+        final HashMap<String, ArrayDeque<String>> deques = DEQUES.get();
+        if (deques != null) {
+            deques.remove(key);
+        }
+    }
+}
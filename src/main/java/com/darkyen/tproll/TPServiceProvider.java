@@ -0,0 +1,54 @@
+package com.darkyen.tproll;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.ILoggerFactory;
+import org.slf4j.IMarkerFactory;
+import org.slf4j.helpers.BasicMarkerFactory;
+import org.slf4j.spi.MDCAdapter;
+import org.slf4j.spi.SLF4JServiceProvider;
+
+/**
+ * Binds tproll to SLF4J 2.
+ * Older SLF4J versions use {@link org.slf4j.impl.StaticLoggerBinder} instead.
+ */
+@SuppressWarnings("unused")
+public final class TPServiceProvider implements SLF4JServiceProvider {
+
+    /**
+     * Declare the version of the SLF4J API this implementation is compiled
+     * against. The value of this field is usually modified with each release.
+     * Do NOT make this final (compiler constant folding problems).
+     */
+    public static @NotNull String REQUESTED_API_VERSION = "2.0.17";
+
+    private ILoggerFactory loggerFactory;
+    private IMarkerFactory markerFactory;
+    private MDCAdapter mdcAdapter;
+
+    @Override
+    public void initialize() {
+        loggerFactory = new TPLoggerFactory();
+        markerFactory = new BasicMarkerFactory();
+        mdcAdapter = new TPMDCAdapter();
+    }
+
+    @Override
+    public @NotNull ILoggerFactory getLoggerFactory() {
+        return loggerFactory;
+    }
+
+    @Override
+    public @NotNull IMarkerFactory getMarkerFactory() {
+        return markerFactory;
+    }
+
+    @Override
+    public @NotNull MDCAdapter getMDCAdapter() {
+        return mdcAdapter;
+    }
+
+    @Override
+    public @NotNull String getRequestedApiVersion() {
+        return REQUESTED_API_VERSION;
+    }
+}
@@ -1,5 +1,6 @@
 package com.darkyen.tproll.logfunctions;
 
+import com.darkyen.tproll.LogEvent;
 import com.darkyen.tproll.LogFunction;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -8,13 +9,53 @@ import org.slf4j.Marker;
 /**
  * LogFunction that delegates everything to parent LogFunction.
  * To be used as a building block for custom LogFunctions.
+ *
+ * Events are passed to the parent as they are, with their MDC, location and key-value pairs.
+ * Subclasses which change or filter messages should override both {@link #log(LogEvent)}
+ * and {@link #log(String, long, byte, Marker, CharSequence)}. When only the latter is overridden,
+ * events are formatted for it, and their structured data is lost.
+ * Batches go to the parent at once only when the subclass overrides neither of these,
+ * otherwise each event goes through {@link #log(LogEvent)}.
  */
 public abstract class AbstractAdapterLogFunction extends LogFunction {
 
     protected final @NotNull LogFunction parent;
 
+    /** Subclass overrides only {@link #log(String, long, byte, Marker, CharSequence)}, so events must be formatted for it */
+    private final boolean formatEvents;
+    /** Subclass overrides neither log method, so batches can go straight to the parent */
+    private final boolean forwardBatches;
+
     protected AbstractAdapterLogFunction(@NotNull LogFunction parent) {
         this.parent = parent;
+        final boolean overridesContentLog = overrides("log", String.class, long.class, byte.class, Marker.class, CharSequence.class);
+        final boolean overridesEventLog = overrides("log", LogEvent.class);
+        this.formatEvents = overridesContentLog && !overridesEventLog;
+        this.forwardBatches = !overridesContentLog && !overridesEventLog;
+    }
+
+    private boolean overrides(@NotNull String name, @NotNull Class<?> @NotNull... parameterTypes) {
+        try {
+            return getClass().getMethod(name, parameterTypes).getDeclaringClass() != AbstractAdapterLogFunction.class;
+        } catch (NoSuchMethodException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public boolean log(@NotNull LogEvent event) {
+        if (formatEvents) {
+            return log(event.getName(), event.getTime(), event.getLevel(), event.getMarker(), event.getContent());
+        }
+        return parent.log(event);
+    }
+
+    @Override
+    public boolean logBatch(@NotNull LogEvent @NotNull [] events, int count) {
+        if (forwardBatches) {
+            return parent.logBatch(events, count);
+        }
+        return super.logBatch(events, count);
     }
 
     @Override
@@ -27,6 +68,11 @@ public abstract class AbstractAdapterLogFunction extends LogFunction {
         return parent.isEnabled(level, marker);
     }
 
+    @Override
+    public boolean isCongested() {
+        return parent.isCongested();
+    }
+
     @Override
     public void start() {
         parent.start();
@@ -0,0 +1,59 @@
+package com.darkyen.tproll.logfunctions;
+
+/**
+ * Decides when {@link LogFileHandler} flushes the written messages into the file and when it forces them to the storage device.
+ * Flushed messages are in the operating system and survive a crash of the JVM.
+ * Forced (fsync) messages are on the storage device and survive a crash of the operating system or a power loss.
+ *
+ * Flushing by time and all forcing is done by a background thread, so that the logging threads don't wait for the disk.
+ * Times are not exact, the background thread checks them periodically.
+ */
+@SuppressWarnings("unused")
+public final class DurabilityPolicy {
+
+    /** Flush after each message, never force. */
+    public static final DurabilityPolicy FLUSH_EACH = new DurabilityPolicy(0, -1, -1, -1, false);
+    /** Flush only when the buffer is full, never force. Fastest, but messages may be lost if the JVM crashes. */
+    public static final DurabilityPolicy FLUSH_WHEN_FULL = new DurabilityPolicy(-1, -1, -1, -1, false);
+    /**
+     * Flush in background, when nothing was logged for 100 ms, but at least once per second.
+     * Force in background, when an error is logged.
+     */
+    public static final DurabilityPolicy GROUP_COMMIT = new DurabilityPolicy(-1, 1000, 100, -1, true);
+
+    final long flushBytes;
+    final long flushIntervalNanos;
+    final long idleFlushNanos;
+    final long forceIntervalNanos;
+    final boolean forceOnError;
+
+    /**
+     * @param flushBytes flush when this many bytes were written since the last flush, 0 to flush after each message, -1 to not flush by size
+     * @param flushIntervalMs flush at most this long after a message was written, -1 to not flush by time
+     * @param idleFlushMs flush when nothing was written for this long, -1 to not flush when idle
+     * @param forceIntervalMs force at most this long after a message was flushed, -1 to not force by time
+     * @param forceOnError flush and force after a message of level ERROR is written
+     */
+    public DurabilityPolicy(long flushBytes, long flushIntervalMs, long idleFlushMs, long forceIntervalMs, boolean forceOnError) {
+        this.flushBytes = flushBytes;
+        this.flushIntervalNanos = toNanos(flushIntervalMs);
+        this.idleFlushNanos = toNanos(idleFlushMs);
+        this.forceIntervalNanos = toNanos(forceIntervalMs);
+        this.forceOnError = forceOnError;
+    }
+
+    private static long toNanos(long ms) {
+        return ms < 0 ? -1 : ms * 1_000_000L;
+    }
+
+    /** @return how often should the background thread check this policy, in milliseconds, or -1 if it does not need to */
+    long backgroundPeriodMs() {
+        long period = Long.MAX_VALUE;
+        for (long nanos : new long[]{flushIntervalNanos, idleFlushNanos, forceIntervalNanos}) {
+            if (nanos >= 0) {
+                period = Math.min(period, nanos / 1_000_000L);
+            }
+        }
+        return period == Long.MAX_VALUE ? -1 : Math.max(period, 1);
+    }
+}
@@ -1,5 +1,6 @@
 package com.darkyen.tproll.logfunctions;
 
+import com.darkyen.tproll.LogEvent;
 import com.darkyen.tproll.LogFunction;
 import com.darkyen.tproll.TPLogger;
 import com.darkyen.tproll.util.TimeFormatter;
@@ -26,6 +27,13 @@ public class FileLogFunction extends LogFunction {
 
     private boolean logging = false;
 
+    /** Writes which take longer than this, on average, mean that the log function is congested */
+    private volatile long congestionLatencyNanos = 10_000_000L;
+    /** Exponential moving average of the write duration, written under LOCK */
+    private volatile long averageWriteNanos = 0;
+    /** {@link System#nanoTime()} when the current write started, 0 when not writing */
+    private volatile long writeStart = 0;
+
     /**
      * @param timeFormatter used for displaying time, null for no time
      * @param logFileHandler for file handling
@@ -60,8 +68,20 @@ public class FileLogFunction extends LogFunction {
 
     private final @NotNull StringBuilder log_sb = new StringBuilder();
 
+    @Override
+    public boolean log(@NotNull LogEvent event) {
+        if (event.getLocation() == null && event.getMDC().isEmpty() && event.getKeyValueCount() == 0) {
+            return super.log(event);
+        }
+        return log(event.getName(), event.getTime(), event.getLevel(), event.getMarker(), event, event.getContent());
+    }
+
     @Override
     public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        return log(name, time, level, marker, null, content);
+    }
+
+    private boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @Nullable LogEvent context, @NotNull CharSequence content) {
         synchronized (LOCK) {
             if (logging) {
                 return false;
@@ -69,20 +89,32 @@ public class FileLogFunction extends LogFunction {
             final StringBuilder sb = this.log_sb;
             try {
                 logging = true;// Do not log to file when something inside this logs
+                appendMessage(sb, name, time, level, marker, context, content);
+                return write(sb, level);
+            } finally {
+                logging = false;
+                sb.setLength(0);
+            }
+        }
+    }
 
-                sb.append('[');
-                if (timeFormatter != null) {
-                    timeFormatter.format(time, sb);
-                    sb.append(' ');
-                }
-                sb.append(alignedLevelName(level));
-                if (marker != null) {
-                    appendMarker(sb, false, marker, true);
+    /** Whole batch is written to the {@link ILogFileHandler} at once. */
+    @Override
+    public boolean logBatch(@NotNull LogEvent @NotNull [] events, int count) {
+        synchronized (LOCK) {
+            if (logging) {
+                return false;
+            }
+            final StringBuilder sb = this.log_sb;
+            try {
+                logging = true;// Do not log to file when something inside this logs
+                byte maxLevel = TPLogger.TRACE;
+                for (int i = 0; i < count; i++) {
+                    final LogEvent event = events[i];
+                    appendMessage(sb, event.getName(), event.getTime(), event.getLevel(), event.getMarker(), event, event.getContent());
+                    maxLevel = (byte) Math.max(maxLevel, event.getLevel());
                 }
-                sb.append(']').append(' ').append(name).append(':').append(' ');
-                sb.append(content).append('\n');
-
-                return logFileHandler.log(sb);
+                return count == 0 || write(sb, maxLevel);
             } finally {
                 logging = false;
                 sb.setLength(0);
@@ -90,6 +122,58 @@ public class FileLogFunction extends LogFunction {
         }
     }
 
+    /** Write the messages into the file handler and measure how long it took. Only under LOCK. */
+    private boolean write(@NotNull StringBuilder sb, byte level) {
+        final long start = System.nanoTime();
+        writeStart = start == 0 ? 1 : start;
+        try {
+            return logFileHandler.log(sb, level);
+        } finally {
+            writeStart = 0;
+            final long duration = System.nanoTime() - start;
+            final long average = averageWriteNanos;
+            averageWriteNanos = average + ((duration - average) >> 3);
+        }
+    }
+
+    /**
+     * Set how long the writes must take on average, or how long can the current write take,
+     * before the log function is considered congested. Default is 10 ms.
+     * @see LogFunction#isCongested()
+     */
+    public void setCongestionLatency(long latencyMs) {
+        this.congestionLatencyNanos = latencyMs * 1_000_000L;
+    }
+
+    /** @return true when the writes are slow or the current write is stuck */
+    @Override
+    public boolean isCongested() {
+        final long congestionLatencyNanos = this.congestionLatencyNanos;
+        if (averageWriteNanos > congestionLatencyNanos) {
+            return true;
+        }
+        final long writeStart = this.writeStart;
+        return writeStart != 0 && System.nanoTime() - writeStart > congestionLatencyNanos;
+    }
+
+    private void appendMessage(@NotNull StringBuilder sb, @NotNull String name, long time, byte level, @Nullable Marker marker, @Nullable LogEvent context, @NotNull CharSequence content) {
+        sb.append('[');
+        if (timeFormatter != null) {
+            timeFormatter.format(time, sb);
+            sb.append(' ');
+        }
+        sb.append(alignedLevelName(level));
+        if (marker != null) {
+            appendMarker(sb, false, marker, true);
+        }
+        sb.append(']').append(' ').append(name);
+        if (context != null) {
+            context.appendContext(sb);
+        }
+        sb.append(':').append(' ');
+        sb.append(content).append('\n');
+    }
+
     @Override
     public synchronized void start() {
         try {
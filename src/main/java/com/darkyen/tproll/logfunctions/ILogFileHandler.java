@@ -22,6 +22,15 @@ public interface ILogFileHandler {
      */
     boolean log(@NotNull CharSequence message);
 
+    /**
+     * Like {@link #log(CharSequence)}, called with the highest level of the logged messages,
+     * for handlers which treat important messages differently.
+     * @param level of the most important message, see {@link com.darkyen.tproll.TPLogger} level constants
+     */
+    default boolean log(@NotNull CharSequence message, byte level) {
+        return log(message);
+    }
+
     /** Called by {@link FileLogFunction#stop()}. */
     void stop();
 
@@ -4,19 +4,35 @@ import com.darkyen.tproll.TPLogger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeFormatterBuilder;
 import java.time.temporal.ChronoField;
-import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.GZIPOutputStream;
 
 /**
@@ -44,26 +60,85 @@ public class LogFileHandler implements ILogFileHandler {
 
     private final TPLogger LOG = new TPLogger("LogFileHandler");
 
+    /**
+     * Compresses the rotated files and performs cleanup, so that the thread which happened to log does not have to.
+     * Single low priority thread. When too much work piles up, new work is rejected, never done by the thread which submits it,
+     * because that thread is logging and holds the lock of the handler.
+     */
+    private static final @NotNull ThreadPoolExecutor BACKGROUND_EXECUTOR = new ThreadPoolExecutor(
+            1, 1, 10, TimeUnit.SECONDS, new ArrayBlockingQueue<>(16), runnable -> {
+                final Thread thread = new Thread(runnable, "LogFileHandler background");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.AbortPolicy());
+    static {
+        BACKGROUND_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
     /** Used as a synchronization lock for opening/closing/cleanup */
     private final @NotNull File logDirectory;
     private final @NotNull LogFileCreationStrategy fileCreationStrategy;
     private final boolean compressOnExit;
     private final long reservedFilesystemBytes;
     private final long maxFileSize;
-    private final boolean flush;
+    private @NotNull DurabilityPolicy durabilityPolicy;
+
+    /** Amount of closed files which are waiting for compression or being compressed, guarded by logDirectory */
+    private int pendingCompressions = 0;
+    /** Cleanup was requested while compressing, guarded by logDirectory */
+    private boolean cleanupDeferred = false;
+
+    /**
+     * Periodic flushing and forcing, see {@link DurabilityPolicy}.
+     * Single thread, shared by all handlers, because it spends most of the time waiting.
+     */
+    private static final @NotNull ScheduledThreadPoolExecutor FLUSHER = new ScheduledThreadPoolExecutor(1, runnable -> {
+        final Thread thread = new Thread(runnable, "LogFileHandler flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    static {
+        FLUSHER.setRemoveOnCancelPolicy(true);
+    }
+
+    /** Flushing state of the opened file, guarded by this */
+    private long flushedSize = 0;
+    private boolean unflushed = false;
+    private long unflushedSince = 0;
+    private long lastWrite = 0;
+    private boolean unforced = false;
+    private long unforcedSince = 0;
+    /** Set when forcing was requested from {@link #log(CharSequence, byte)} and the request was not handled yet */
+    private final @NotNull AtomicBoolean forceRequested = new AtomicBoolean(false);
+    private @Nullable ScheduledFuture<?> backgroundFlush = null;
+
+    private boolean compressWhileWriting = false;
+    private long syncFlushIntervalMs = 1000;
+
+    private int bufferSize = 64 * 1024;
+    private boolean directBuffer = false;
+    /** Write buffer and encoder, reused for all files */
+    private @Nullable ByteBuffer buffer = null;
+    private @Nullable CharsetEncoder encoder = null;
+    private @Nullable CharBuffer encoderChars = null;
 
     /**
-     * Encompasses an opened file stream, implements buffering and written/remaining byte counting.
+     * Encompasses an opened file channel, implements encoding, buffering and written/remaining byte counting.
+     * All text is encoded as UTF-8 directly into the buffer, ASCII without going through the encoder.
+     * Subclasses may change how the buffer gets into the file, by overriding {@link #flushBuffer()}.
      */
-    private static final class OpenedFile extends OutputStream {
+    static class OpenedFile implements Appendable, Flushable, Closeable {
         final @NotNull File file;
-        private final @NotNull FileOutputStream outputStream;
-        /** Use this to actually write the data out. */
-        final @NotNull Writer writer = new OutputStreamWriter(this, StandardCharsets.UTF_8);
+        final @NotNull FileChannel channel;
 
-        private final byte[] buffer = new byte[8192];
-        private int bufferFilled = 0;
+        /** Contains only the bytes of this file, which were not written yet */
+        @NotNull ByteBuffer buffer;
+        private final @NotNull CharsetEncoder encoder;
+        /** Non-ASCII characters are copied here for the encoder */
+        private final @NotNull CharBuffer chars;
 
+        /** Bytes written into the file */
         private long fileSize;
 
         private static final long CHECK_REMAINING_INTERVAL_MS = 60_000;
@@ -73,14 +148,32 @@ public class LogFileHandler implements ILogFileHandler {
         boolean cleanupAttempted = false;
         boolean notEnoughSpaceLogged = false;
 
-        OpenedFile(@NotNull File file, @NotNull FileOutputStream stream) {
+        /**
+         * @param fileSize current size of the file, to which the buffer is appended
+         */
+        OpenedFile(@NotNull File file, @NotNull FileChannel channel, long fileSize, @NotNull ByteBuffer buffer, @NotNull CharsetEncoder encoder, @NotNull CharBuffer chars) {
             this.file = file;
-            this.fileSize = file.length();
-            this.outputStream = stream;
+            this.channel = channel;
+            this.fileSize = fileSize;
+            this.buffer = buffer;
+            this.encoder = encoder;
+            this.chars = chars;
+            buffer.clear();
         }
 
+        /** @return size of the file in bytes, including the buffered bytes which will be written into it */
         public long fileSize() {
-            return fileSize + bufferFilled;
+            return fileSize + buffer.position();
+        }
+
+        /** @return bytes written into the file, without the buffered ones */
+        final long writtenSize() {
+            return fileSize;
+        }
+
+        /** @return bytes of encoded text appended so far, including the buffered ones, same as {@link #fileSize()} unless compressed */
+        long contentSize() {
+            return fileSize();
         }
 
         public long remainingDestinationCapacity(boolean forceCheck) {
@@ -89,53 +182,134 @@ public class LogFileHandler implements ILogFileHandler {
                 nextRemainingCheckInMs = now + CHECK_REMAINING_INTERVAL_MS;
                 remainingFileSystemBytes = file.getFreeSpace();
             }
-            return remainingFileSystemBytes - bufferFilled;
+            return remainingFileSystemBytes - buffer.position();
         }
 
         @Override
-        public void write(byte @NotNull [] b) throws IOException {
-            this.write(b, 0, b.length);
+        public @NotNull OpenedFile append(@Nullable CharSequence csq) throws IOException {
+            if (csq == null) {
+                csq = "null";
+            }
+            return append(csq, 0, csq.length());
         }
 
         @Override
-        public void write(int b) throws IOException {
-            if (bufferFilled >= buffer.length) {
-                flushBuffer();
+        public @NotNull OpenedFile append(@Nullable CharSequence csq, int start, int end) throws IOException {
+            if (csq == null) {
+                csq = "null";
+            }
+            int i = start;
+            while (i < end) {
+                // Flushing may replace the buffer
+                final ByteBuffer buffer = this.buffer;
+                // ASCII fast path, one byte per char
+                int position = buffer.position();
+                final int limit = position + Math.min(buffer.remaining(), end - i);
+                if (buffer.hasArray()) {
+                    final byte[] array = buffer.array();
+                    final int offset = buffer.arrayOffset();
+                    while (position < limit) {
+                        final char c = csq.charAt(i);
+                        if (c >= 0x80) break;
+                        array[offset + position++] = (byte) c;
+                        i++;
+                    }
+                } else {
+                    while (position < limit) {
+                        final char c = csq.charAt(i);
+                        if (c >= 0x80) break;
+                        buffer.put(position++, (byte) c);
+                        i++;
+                    }
+                }
+                buffer.position(position);
+
+                if (i < end) {
+                    if (buffer.hasRemaining()) {
+                        i = encode(csq, i, end);
+                    } else {
+                        flushBuffer();
+                    }
+                }
             }
-            buffer[bufferFilled++] = (byte) b;
+            return this;
         }
 
         @Override
-        public void write(byte @NotNull [] b, int off, int len) throws IOException {
-            while (true) {
-                int remainingBufferCapacity = buffer.length - bufferFilled;
-                final int writeNow = Math.min(len, remainingBufferCapacity);
-                System.arraycopy(b, off, buffer, bufferFilled, writeNow);
-                len -= writeNow;
-                off += writeNow;
-                bufferFilled += writeNow;
-
-                if (len > 0) {
-                    // Buffer is full, flush and write more
+        public @NotNull OpenedFile append(char c) throws IOException {
+            if (c < 0x80) {
+                if (!buffer.hasRemaining()) {
                     flushBuffer();
-                } else {
-                    // Done
-                    break;
                 }
+                buffer.put((byte) c);
+                return this;
+            }
+            return append(String.valueOf(c), 0, 1);
+        }
+
+        /**
+         * Encode the run of non-ASCII characters starting at start.
+         * @return index of the first character which was not encoded
+         */
+        private int encode(@NotNull CharSequence csq, int start, int end) throws IOException {
+            final CharBuffer chars = this.chars;
+            final char[] array = chars.array();
+            int count = 0;
+            int i = start;
+            // Leave space for the second half of a surrogate pair
+            while (i < end && count < array.length - 1) {
+                final char c = csq.charAt(i);
+                if (c < 0x80) break;
+                array[count++] = c;
+                i++;
+            }
+            if (Character.isHighSurrogate(array[count - 1]) && i < end) {
+                array[count++] = csq.charAt(i++);
+            }
+
+            chars.clear().limit(count);
+            final CharsetEncoder encoder = this.encoder;
+            encoder.reset();
+            CoderResult result;
+            while ((result = encoder.encode(chars, buffer, true)).isOverflow()) {
+                flushBuffer();
+            }
+            if (result.isError()) {
+                result.throwException();
+            }
+            while (encoder.flush(buffer).isOverflow()) {
+                flushBuffer();
             }
+            return i;
         }
 
-        private void flushBuffer() throws IOException {
-            outputStream.write(buffer, 0, bufferFilled);
-            fileSize += bufferFilled;
-            remainingFileSystemBytes -= bufferFilled;
-            bufferFilled = 0;
+        /** Count the bytes which were moved from the buffer into the file */
+        final void written(long bytes) {
+            fileSize += bytes;
+            remainingFileSystemBytes -= bytes;
+        }
+
+        /** Write out the content of the buffer and make it empty */
+        void flushBuffer() throws IOException {
+            final ByteBuffer buffer = this.buffer;
+            buffer.flip();
+            try {
+                while (buffer.hasRemaining()) {
+                    written(channel.write(buffer));
+                }
+            } finally {
+                buffer.clear();
+            }
         }
 
         @Override
         public void flush() throws IOException {
             flushBuffer();
-            outputStream.flush();
+        }
+
+        /** Force what was flushed to the storage device. May be called concurrently with writing. */
+        void force() throws IOException {
+            channel.force(false);
         }
 
         @Override
@@ -143,21 +317,134 @@ public class LogFileHandler implements ILogFileHandler {
             try {
                 flushBuffer();
             } finally {
-                outputStream.close();
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Compresses the content while writing it, see {@link #setCompressWhileWriting(boolean, long)}.
+     * File size counts only the compressed bytes which were written into the file,
+     * content which is still in the buffer or in the deflater is counted only by {@link #contentSize()}.
+     */
+    private static final class GzipFile extends OpenedFile {
+        private final @NotNull LogFileHandler handler;
+        private final @NotNull GZIPOutputStream out;
+        private final long syncFlushIntervalNanos;
+        private long lastSyncFlush;
+        /** Sync flush skipped because of the interval was scheduled on {@link #FLUSHER}, guarded by the handler */
+        boolean syncFlushScheduled = false;
+        /** Bytes moved into the deflater */
+        private long deflatedSize = 0;
+        /** For moving the content of direct buffers into the deflater */
+        private byte @Nullable [] copy = null;
+
+        GzipFile(@NotNull LogFileHandler handler, @NotNull File file, @NotNull FileChannel channel, long fileSize, @NotNull ByteBuffer buffer, @NotNull CharsetEncoder encoder, @NotNull CharBuffer chars, long syncFlushIntervalMs) throws IOException {
+            super(file, channel, fileSize, buffer, encoder, chars);
+            this.handler = handler;
+            this.syncFlushIntervalNanos = syncFlushIntervalMs * 1_000_000L;
+            this.out = new GZIPOutputStream(new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte @NotNull [] b, int off, int len) throws IOException {
+                    final ByteBuffer compressed = ByteBuffer.wrap(b, off, len);
+                    while (compressed.hasRemaining()) {
+                        written(channel.write(compressed));
+                    }
+                }
+            }, 8192, true);
+            this.lastSyncFlush = System.nanoTime();
+        }
+
+        /** @return compressed size, without the content which was not compressed yet */
+        @Override
+        public long fileSize() {
+            return writtenSize();
+        }
+
+        @Override
+        long contentSize() {
+            return deflatedSize + buffer.position();
+        }
+
+        /** Move the buffer into the deflater */
+        @Override
+        void flushBuffer() throws IOException {
+            final ByteBuffer buffer = this.buffer;
+            buffer.flip();
+            deflatedSize += buffer.remaining();
+            try {
+                if (buffer.hasArray()) {
+                    out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                } else {
+                    byte[] copy = this.copy;
+                    if (copy == null) {
+                        this.copy = copy = new byte[8192];
+                    }
+                    while (buffer.hasRemaining()) {
+                        final int length = Math.min(copy.length, buffer.remaining());
+                        buffer.get(copy, 0, length);
+                        out.write(copy, 0, length);
+                    }
+                }
+            } finally {
+                buffer.clear();
+            }
+        }
+
+        /**
+         * Everything written so far becomes readable only after sync flush, which is done at most once per interval.
+         * When it is too early, sync flush is done later on {@link #FLUSHER}, so that the last messages don't stay in the deflater.
+         */
+        @Override
+        public void flush() throws IOException {
+            flushBuffer();
+            final long sinceSyncFlush = System.nanoTime() - lastSyncFlush;
+            if (sinceSyncFlush >= syncFlushIntervalNanos) {
+                syncFlush();
+            } else if (!syncFlushScheduled) {
+                syncFlushScheduled = true;
+                FLUSHER.schedule(() -> handler.deferredSyncFlush(this), syncFlushIntervalNanos - sinceSyncFlush, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        /** Make everything that was moved into the deflater readable */
+        void syncFlush() throws IOException {
+            lastSyncFlush = System.nanoTime();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                try {
+                    flushBuffer();
+                } finally {
+                    // Writes the gzip trailer
+                    out.close();
+                }
+            } finally {
+                channel.close();
             }
         }
     }
 
     private boolean started = false;
-    private @Nullable OpenedFile opened = null;
+    /** Written only by the logging thread, read by the background compression */
+    private volatile @Nullable OpenedFile opened = null;
 
     /**
      * @param logDirectory            in which the log files should be created
      * @param fileCreationStrategy    how the files in logDirectory should be created
      * @param compressOnExit          whether the log files should be compressed when they are closed
      * @param reservedFilesystemBytes do not log any more if the filesystem has less than this many free bytes
-     * @param maxFileSize             start logging into a new file when the size reaches this number
+     * @param maxFileSize             start logging into a new file when the size reaches this number, compressed size when compressing while writing
      * @param flush                   flush after each log? False may lead to slightly better performance when logging a large amount of small messages, but the last file entry may not be complete and messages may be lost if the JVM crashes.
+     *                                See {@link #setDurabilityPolicy(DurabilityPolicy)} for more options.
      */
     public LogFileHandler(
             @NotNull File logDirectory,
@@ -170,7 +457,51 @@ public class LogFileHandler implements ILogFileHandler {
         this.compressOnExit = compressOnExit;
         this.reservedFilesystemBytes = reservedFilesystemBytes;
         this.maxFileSize = maxFileSize;
-        this.flush = flush;
+        this.durabilityPolicy = flush ? DurabilityPolicy.FLUSH_EACH : DurabilityPolicy.FLUSH_WHEN_FULL;
+    }
+
+    /**
+     * Set when the messages are flushed and forced to the storage device.
+     * Replaces the flush parameter of the constructor, which is {@link DurabilityPolicy#FLUSH_EACH} or {@link DurabilityPolicy#FLUSH_WHEN_FULL}.
+     * Call only before the log function is started.
+     */
+    public void setDurabilityPolicy(@NotNull DurabilityPolicy durabilityPolicy) {
+        this.durabilityPolicy = durabilityPolicy;
+    }
+
+    /**
+     * Set the size of the buffer into which the messages are encoded before writing them to the file.
+     * The buffer is written when full or flushed (see {@link #setDurabilityPolicy(DurabilityPolicy)}).
+     * Call only before the log function is started.
+     * @param bufferSize in bytes, default is 64 KiB
+     * @param direct whether to allocate a direct buffer, which saves a copy when writing into the file, default is false
+     */
+    public void setBuffer(int bufferSize, boolean direct) {
+        if (bufferSize < 16) throw new IllegalArgumentException("bufferSize must be at least 16");
+        this.bufferSize = bufferSize;
+        this.directBuffer = direct;
+        this.buffer = null;
+    }
+
+    /**
+     * Write the log files compressed, into a file with ".gz" appended to the name given by the {@link LogFileCreationStrategy}.
+     * Unlike compressOnExit, the file does not have to be read and compressed again when it is closed.
+     * The content is readable (with tools which tolerate an unfinished gzip stream, like zcat) up to the last sync flush.
+     * Sync flush is done when the file is flushed, but at most once per syncFlushIntervalMs, because it makes the compression worse.
+     * A flush which comes earlier is sync flushed when the interval ends.
+     * The maximum file size applies to the compressed size, while the flushBytes of {@link DurabilityPolicy} counts the uncompressed bytes.
+     * Call only before the log function is started.
+     * @param compress true to compress while writing, default is false
+     * @param syncFlushIntervalMs minimum time between sync flushes, default is 1000, 0 to sync flush on every flush
+     * @throws IllegalArgumentException when compress is true and this handler writes the files in a way which can't be compressed,
+     * like {@link MemoryMappedLogFileHandler}
+     */
+    public void setCompressWhileWriting(boolean compress, long syncFlushIntervalMs) {
+        if (compress && !canCompressWhileWriting()) {
+            throw new IllegalArgumentException(getClass().getSimpleName() + " can't compress while writing");
+        }
+        this.compressWhileWriting = compress;
+        this.syncFlushIntervalMs = syncFlushIntervalMs;
     }
 
     private @Nullable OpenedFile openFile() {
@@ -211,23 +542,37 @@ public class LogFileHandler implements ILogFileHandler {
                     }
                 }
 
-                final FileOutputStream stream = new FileOutputStream(logFile, fileCreationStrategy.shouldAppend());
+                CharsetEncoder encoder = this.encoder;
+                CharBuffer encoderChars = this.encoderChars;
+                if (encoder == null || encoderChars == null) {
+                    this.encoder = encoder = StandardCharsets.UTF_8.newEncoder()
+                            .onMalformedInput(CodingErrorAction.REPLACE)
+                            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+                    this.encoderChars = encoderChars = CharBuffer.allocate(256);
+                }
+
+                final OpenedFile openedFile = openFile(logFile, fileCreationStrategy.shouldAppend(), encoder, encoderChars);
                 boolean success = false;
                 try {
-                    final OpenedFile openedFile = new OpenedFile(logFile, stream);
-                    final Writer writer = openedFile.writer;
-
-                    writer.append("Log file opened at ");
-                    FILE_ACTION_TIME_FORMATTER.formatTo(TPLogger.getTimeProvider().time(), writer);
-                    writer.append('\n');
-                    writer.flush();
+                    openedFile.append("Log file opened at ");
+                    FILE_ACTION_TIME_FORMATTER.formatTo(TPLogger.getTimeProvider().time(), openedFile);
+                    openedFile.append('\n');
+                    openedFile.flush();
+                    flushed(openedFile, System.nanoTime());
 
-                    ForkJoinPool.commonPool().execute(() -> cleanup(logFile));
+                    try {
+                        BACKGROUND_EXECUTOR.execute(() -> cleanup(openedFile.file));
+                    } catch (RejectedExecutionException e) {
+                        // Too busy, try again when this handler finishes a compression or opens the next file
+                        synchronized (logDirectory) {
+                            cleanupDeferred = true;
+                        }
+                    }
                     success = true;
                     return openedFile;
                 } finally {
                     if (!success) {
-                        stream.close();
+                        openedFile.close();
                     }
                 }
             } catch (Throwable t) {
@@ -237,8 +582,47 @@ public class LogFileHandler implements ILogFileHandler {
         }
     }
 
+    /** @return whether files opened by {@link #openFile(File, boolean, CharsetEncoder, CharBuffer)} can be compressed while writing */
+    boolean canCompressWhileWriting() {
+        return true;
+    }
+
+    /**
+     * Open the file for writing, after it was selected and verified.
+     * @param append whether to keep the existing content
+     * @param encoder to pass to the {@link OpenedFile}
+     * @param chars to pass to the {@link OpenedFile}
+     */
+    @NotNull OpenedFile openFile(@NotNull File logFile, boolean append, @NotNull CharsetEncoder encoder, @NotNull CharBuffer chars) throws IOException {
+        ByteBuffer buffer = this.buffer;
+        if (buffer == null) {
+            this.buffer = buffer = directBuffer ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        }
+        if (compressWhileWriting) {
+            logFile = new File(logFile.getParentFile(), logFile.getName() + ".gz");
+        }
+        final FileChannel channel = append
+                ? FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)
+                : FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            if (compressWhileWriting) {
+                return new GzipFile(this, logFile, channel, channel.size(), buffer, encoder, chars, syncFlushIntervalMs);
+            }
+            return new OpenedFile(logFile, channel, channel.size(), buffer, encoder, chars);
+        } catch (Throwable t) {
+            channel.close();
+            throw t;
+        }
+    }
+
     private void cleanup(File currentLogFile) {
         synchronized (logDirectory) {
+            if (pendingCompressions > 0) {
+                // The strategy could delete the files which are being compressed, run it when they are done
+                cleanupDeferred = true;
+                return;
+            }
+            cleanupDeferred = false;
             try {
                 fileCreationStrategy.performCleanup(logDirectory, currentLogFile, LOG);
             } catch (Throwable t) {
@@ -247,83 +631,242 @@ public class LogFileHandler implements ILogFileHandler {
         }
     }
 
-    private void closeFile(@NotNull OpenedFile file, @NotNull String reason) {
+    /**
+     * @param background true to compress on {@link #BACKGROUND_EXECUTOR}, false to compress on this thread
+     */
+    private void closeFile(@NotNull OpenedFile file, @NotNull String reason, boolean background) {
+        final File closedFile = file.file;
         synchronized (logDirectory) {
             try {
-                final Writer w = file.writer;
-                w.append("Log file closed at ");
-                FILE_ACTION_TIME_FORMATTER.formatTo(TPLogger.getTimeProvider().time(), w);
-                w.append(" (");
-                w.append(reason);
-                w.append(")\n");
+                file.append("Log file closed at ");
+                FILE_ACTION_TIME_FORMATTER.formatTo(TPLogger.getTimeProvider().time(), file);
+                file.append(" (");
+                file.append(reason);
+                file.append(")\n");
             } catch (Throwable t) {
-                LOG.error("Failed to write file {} footer", file.file, t);
+                LOG.error("Failed to write file {} footer", closedFile, t);
             }
 
             try {
-                file.writer.close();
+                file.close();
             } catch (Throwable t) {
-                LOG.error("Failed to close file {}", file.file, t);
-            }
-
-            if (compressOnExit) {
-                final File openedFile = file.file;
-                final File compressedFile = new File(openedFile.getParentFile(), openedFile.getName() + ".gz");
-                final long originalSize = openedFile.length();
-                if (!compressedFile.exists() && originalSize > 0) {
-                    try (FileInputStream in = new FileInputStream(openedFile)) {
-                        try (GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(compressedFile))) {
-                            final byte[] buffer = new byte[(int) Math.min(8192, originalSize)];
-                            while (true) {
-                                final int read = in.read(buffer);
-                                if (read <= 0) break;
-                                out.write(buffer, 0, read);
-                            }
-                        }
-                    } catch (IOException e) {
-                        LOG.error("Failed to compress {}", openedFile);
-                    }
+                LOG.error("Failed to close file {}", closedFile, t);
+            }
 
-                    final long compressedSize = compressedFile.length();
-                    if (compressedSize <= 0) {
-                        LOG.error("Failed to compress {}, result file is empty", openedFile);
-                    } else {
-                        final File delete = (compressedSize < originalSize) ? openedFile : compressedFile;
+            if (!compressOnExit || compressWhileWriting) {
+                return;
+            }
+            pendingCompressions++;
+        }
+
+        if (background) {
+            try {
+                BACKGROUND_EXECUTOR.execute(() -> compress(closedFile));
+            } catch (RejectedExecutionException e) {
+                LOG.warn("Too many log files are waiting for compression, {} is left uncompressed", closedFile);
+                compressed(closedFile);
+            }
+        } else {
+            compress(closedFile);
+        }
+    }
+
+    /** Compress the closed file, then run the cleanup, if it was deferred because of it. */
+    private void compress(@NotNull File closedFile) {
+        try {
+            final File compressedFile = new File(closedFile.getParentFile(), closedFile.getName() + ".gz");
+            final long originalSize = closedFile.length();
+            if (compressedFile.exists() || originalSize <= 0) {
+                return;
+            }
 
-                        if (!delete.delete() && delete.isFile()) {
-                            LOG.warn("Failed to delete {} after log compression", delete);
+            // Compressed into a temporary file first, so that a crash does not leave behind a truncated archive
+            final File temporaryFile = new File(closedFile.getParentFile(), closedFile.getName() + ".gz.tmp");
+            try {
+                try (FileInputStream in = new FileInputStream(closedFile)) {
+                    try (GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(temporaryFile))) {
+                        final byte[] buffer = new byte[(int) Math.min(8192, originalSize)];
+                        while (true) {
+                            final int read = in.read(buffer);
+                            if (read <= 0) break;
+                            out.write(buffer, 0, read);
                         }
                     }
                 }
+                try {
+                    Files.move(temporaryFile.toPath(), compressedFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temporaryFile.toPath(), compressedFile.toPath());
+                }
+            } catch (IOException e) {
+                LOG.error("Failed to compress {}", closedFile);
+                //noinspection ResultOfMethodCallIgnored
+                temporaryFile.delete();
+                return;
+            }
+
+            final long compressedSize = compressedFile.length();
+            if (compressedSize <= 0) {
+                LOG.error("Failed to compress {}, result file is empty", closedFile);
+            } else {
+                final File delete = (compressedSize < originalSize) ? closedFile : compressedFile;
+
+                if (!delete.delete() && delete.isFile()) {
+                    LOG.warn("Failed to delete {} after log compression", delete);
+                }
+            }
+        } finally {
+            compressed(closedFile);
+        }
+    }
+
+    /** Note that the closed file is no longer waiting for compression, then run the cleanup, if it was deferred because of it. */
+    private void compressed(@NotNull File closedFile) {
+        synchronized (logDirectory) {
+            if (--pendingCompressions == 0) {
+                logDirectory.notifyAll();
+                if (cleanupDeferred) {
+                    final OpenedFile opened = this.opened;
+                    cleanup(opened != null ? opened.file : closedFile);
+                }
+            }
+        }
+    }
+
+    /** Note that everything written into the file so far was flushed. Only under this. */
+    private void flushed(@NotNull OpenedFile opened, long now) {
+        flushedSize = opened.contentSize();
+        unflushed = false;
+        if (!unforced) {
+            unforced = true;
+            unforcedSince = now;
+        }
+    }
+
+    /** Sync flush of a compressed file, which was too early when it was flushed. Only on {@link #FLUSHER}. */
+    private void deferredSyncFlush(@NotNull GzipFile file) {
+        IOException failure = null;
+        synchronized (this) {
+            if (this.opened != file) {
+                // Closed, which finished the stream
+                return;
+            }
+            file.syncFlushScheduled = false;
+            try {
+                file.syncFlush();
+            } catch (IOException e) {
+                // Logged outside of the lock, because logging may come back to this handler from a different thread
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            LOG.error("Failed to flush log file", failure);
+        }
+    }
+
+    /** Flush and force in the background, according to the policy. Only on {@link #FLUSHER}. */
+    private void backgroundFlush() {
+        final DurabilityPolicy policy = this.durabilityPolicy;
+        final OpenedFile forceFile;
+        IOException flushFailure = null;
+        synchronized (this) {
+            final OpenedFile opened = this.opened;
+            if (opened == null) {
+                forceRequested.set(false);
+                return;
+            }
+            final long now = System.nanoTime();
+            final boolean forceNow = forceRequested.getAndSet(false);
+            if (unflushed && (forceNow
+                    || (policy.flushIntervalNanos >= 0 && now - unflushedSince >= policy.flushIntervalNanos)
+                    || (policy.idleFlushNanos >= 0 && now - lastWrite >= policy.idleFlushNanos))) {
+                try {
+                    opened.flush();
+                    flushed(opened, now);
+                } catch (IOException e) {
+                    // Logged outside of the lock, because logging may come back to this handler from a different thread
+                    flushFailure = e;
+                }
+            }
+
+            if (flushFailure == null && unforced && (forceNow
+                    || (policy.forceIntervalNanos >= 0 && now - unforcedSince >= policy.forceIntervalNanos))) {
+                unforced = false;
+                forceFile = opened;
+            } else {
+                forceFile = null;
+            }
+        }
+
+        if (flushFailure != null) {
+            // The next write will find out as well and close the file
+            LOG.error("Failed to flush log file", flushFailure);
+        } else if (forceFile != null) {
+            try {
+                // Outside of the lock, logging does not have to wait for it
+                forceFile.force();
+            } catch (Exception e) {
+                if (forceFile == this.opened) {
+                    LOG.error("Failed to force {}", forceFile.file, e);
+                }
+                // else the file was closed in the meantime
             }
         }
     }
 
     @Override
-    public void start() {
+    public synchronized void start() {
         this.opened = openFile();
         started = true;
+        final long period = durabilityPolicy.backgroundPeriodMs();
+        if (period > 0) {
+            backgroundFlush = FLUSHER.scheduleWithFixedDelay(this::backgroundFlush, period, period, TimeUnit.MILLISECONDS);
+        }
     }
 
     @Override
-    public void stop() {
+    public synchronized void stop() {
         started = false;
+        final ScheduledFuture<?> backgroundFlush = this.backgroundFlush;
+        if (backgroundFlush != null) {
+            this.backgroundFlush = null;
+            backgroundFlush.cancel(false);
+        }
         final OpenedFile opened = this.opened;
         this.opened = null;
         if (opened != null) {
-            closeFile(opened, "shutdown");
+            closeFile(opened, "shutdown", false);
+        }
+
+        // Don't leave behind the files rotated earlier half-compressed
+        synchronized (logDirectory) {
+            boolean interrupted = false;
+            while (pendingCompressions > 0) {
+                try {
+                    logDirectory.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
         }
     }
 
     @Override
     public boolean log(@NotNull CharSequence message) {
+        return log(message, TPLogger.INFO);
+    }
+
+    /** Messages with level ERROR may be forced to the storage device, see {@link DurabilityPolicy}. */
+    @Override
+    public synchronized boolean log(@NotNull CharSequence message, byte level) {
         OpenedFile opened = this.opened;
         if (opened == null && (!started || (this.opened = opened = openFile()) == null)) {
             return false;
         }
 
-        final Writer fileWriter = opened.writer;
-
         if (reservedFilesystemBytes > 0 && opened.remainingDestinationCapacity(false) < reservedFilesystemBytes) {
             final boolean overCapacity;
             // The capacity is full.
@@ -340,8 +883,8 @@ public class LogFileHandler implements ILogFileHandler {
                 if (!opened.notEnoughSpaceLogged) {
                     opened.notEnoughSpaceLogged = true;
                     try {
-                        fileWriter.append("<filesystem capacity exhausted>\n");
-                        fileWriter.flush();
+                        opened.append("<filesystem capacity exhausted>\n");
+                        opened.flush();
                     } catch (IOException e) {
                         LOG.error("Failed to write filesystem-over-capacity warning", e);
                     }
@@ -353,14 +896,21 @@ public class LogFileHandler implements ILogFileHandler {
             }
         }
 
+        final DurabilityPolicy policy = this.durabilityPolicy;
         try {
-            fileWriter.append(message);
-            if (flush) {
-                fileWriter.flush();
+            opened.append(message);
+            final long now = System.nanoTime();
+            lastWrite = now;
+            if (policy.flushBytes >= 0 && opened.contentSize() - flushedSize >= policy.flushBytes) {
+                opened.flush();
+                flushed(opened, now);
+            } else if (!unflushed) {
+                unflushed = true;
+                unflushedSince = now;
             }
         } catch (IOException e) {
             LOG.error("Failed to write {}", opened.file, e);
-            closeFile(opened, "failure to write");
+            closeFile(opened, "failure to write", true);
             this.opened = null;
             return false;
         }
@@ -368,10 +918,16 @@ public class LogFileHandler implements ILogFileHandler {
         if (maxFileSize > 0 && maxFileSize < Long.MAX_VALUE) {
             if (opened.fileSize() > maxFileSize) {
                 this.opened = null;
-                closeFile(opened, "file too large");
+                closeFile(opened, "file too large", true);
+                // The file is closed, it can't be forced anymore
+                return true;
             }
         }
 
+        if (level >= TPLogger.ERROR && policy.forceOnError && !forceRequested.getAndSet(true)) {
+            // Errors logged before the flusher gets to it are forced together
+            FLUSHER.execute(this::backgroundFlush);
+        }
         return true;
     }
 }
@@ -1,5 +1,6 @@
 package com.darkyen.tproll.logfunctions;
 
+import com.darkyen.tproll.LogEvent;
 import com.darkyen.tproll.LogFunction;
 import com.darkyen.tproll.util.SimpleMarker;
 import org.jetbrains.annotations.NotNull;
@@ -73,6 +74,28 @@ public final class LogFunctionMultiplexer extends LogFunction {
         return success;
     }
 
+    /**
+     * Event is formatted at most once, even when it is logged into multiple targets.
+     * @return true if at least one target was successful (false if there are no targets)
+     */
+    @Override
+    public boolean log(@NotNull LogEvent event) {
+        long remainingTargetMask = findMuxTargets(this, event.getMarker());
+        remainingTargetMask ^= optOutMask;
+        final LogFunction[] muxTargets = this.muxTargets;
+        boolean success = false;
+        int target = 0;
+        for (long mask = 1; remainingTargetMask != 0; mask <<= 1, target++) {
+            if ((remainingTargetMask & mask) != 0) {
+                remainingTargetMask &= ~mask;
+                if (muxTargets[target].log(event)) {
+                    success = true;
+                }
+            }
+        }
+        return success;
+    }
+
     @Override
     public boolean isEnabled(byte level, @Nullable Marker marker) {
         long remainingTargetMask = findMuxTargets(this, marker);
@@ -90,6 +113,17 @@ public final class LogFunctionMultiplexer extends LogFunction {
         return false;
     }
 
+    /** @return true if any target is congested */
+    @Override
+    public boolean isCongested() {
+        for (LogFunction target : muxTargets) {
+            if (target.isCongested()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public void start() {
         for (LogFunction target : muxTargets) {
@@ -0,0 +1,123 @@
+package com.darkyen.tproll.logfunctions;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * {@link LogFileHandler} which writes into a memory-mapped window of the log file, instead of writing through a buffer.
+ * When the window is full, the file is extended and the next window is mapped.
+ * Writes are plain memory stores and flushing does nothing, the operating system writes the pages out on its own.
+ *
+ * Data survive a crash of the JVM, but not of the operating system. While the file is open, it is longer than its
+ * content, the rest of the window is filled with zero bytes. When it is closed, it is truncated to its real length,
+ * so file creation strategies, their cleanup and compression work the same as with {@link LogFileHandler}.
+ * (Operating systems which don't allow truncating a mapped file, like Windows, leave the zero bytes at the end.)
+ *
+ * Content can't be compressed while writing, because the mapped window holds the bytes of the file itself,
+ * so {@link #setCompressWhileWriting(boolean, long)} rejects it. Use compressOnExit instead.
+ */
+@SuppressWarnings("unused")
+public class MemoryMappedLogFileHandler extends LogFileHandler {
+
+    private final int windowSize;
+
+    /**
+     * @param logDirectory            in which the log files should be created
+     * @param fileCreationStrategy    how the files in logDirectory should be created
+     * @param compressOnExit          whether the log files should be compressed when they are closed
+     * @param reservedFilesystemBytes do not log any more if the filesystem has less than this many free bytes
+     * @param maxFileSize             start logging into a new file when the size reaches this number
+     * @param windowSize              size of the mapped window in bytes, by which the file grows
+     */
+    public MemoryMappedLogFileHandler(
+            @NotNull File logDirectory,
+            @NotNull LogFileCreationStrategy fileCreationStrategy,
+            boolean compressOnExit,
+            long reservedFilesystemBytes,
+            long maxFileSize, int windowSize) {
+        super(logDirectory, fileCreationStrategy, compressOnExit, reservedFilesystemBytes, maxFileSize, false);
+        if (windowSize < 16) throw new IllegalArgumentException("windowSize must be at least 16");
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Use 4 MiB windows.
+     * @see #MemoryMappedLogFileHandler(File, LogFileCreationStrategy, boolean, long, long, int)
+     */
+    public MemoryMappedLogFileHandler(
+            @NotNull File logDirectory,
+            @NotNull LogFileCreationStrategy fileCreationStrategy,
+            boolean compressOnExit,
+            long reservedFilesystemBytes,
+            long maxFileSize) {
+        this(logDirectory, fileCreationStrategy, compressOnExit, reservedFilesystemBytes, maxFileSize, 4 * 1024 * 1024);
+    }
+
+    @Override
+    boolean canCompressWhileWriting() {
+        return false;
+    }
+
+    @Override
+    @NotNull OpenedFile openFile(@NotNull File logFile, boolean append, @NotNull CharsetEncoder encoder, @NotNull CharBuffer chars) throws IOException {
+        final FileChannel channel = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (!append) {
+                channel.truncate(0);
+            }
+            final long fileSize = channel.size();
+            return new MappedFile(logFile, channel, fileSize, channel.map(FileChannel.MapMode.READ_WRITE, fileSize, windowSize), encoder, chars);
+        } catch (Throwable t) {
+            channel.close();
+            throw t;
+        }
+    }
+
+    private static final class MappedFile extends OpenedFile {
+
+        MappedFile(@NotNull File file, @NotNull FileChannel channel, long fileSize, @NotNull MappedByteBuffer window, @NotNull CharsetEncoder encoder, @NotNull CharBuffer chars) {
+            super(file, channel, fileSize, window, encoder, chars);
+        }
+
+        /** Called when the window is full, map the next one. */
+        @Override
+        void flushBuffer() throws IOException {
+            final int filled = buffer.position();
+            if (filled == 0) {
+                return;
+            }
+            final long end = fileSize();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, end, buffer.capacity());
+            written(filled);
+        }
+
+        /** Nothing to do, the content is already in the file. */
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        void force() throws IOException {
+            // Read without synchronization, an outdated window is still mapped and forcing it does no harm
+            ((MappedByteBuffer) buffer).force();
+            channel.force(false);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                // Cut off the unused rest of the window
+                channel.truncate(fileSize());
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
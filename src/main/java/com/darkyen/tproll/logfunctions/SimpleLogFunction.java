@@ -1,5 +1,6 @@
 package com.darkyen.tproll.logfunctions;
 
+import com.darkyen.tproll.LogEvent;
 import com.darkyen.tproll.LogFunction;
 import com.darkyen.tproll.TPLogger;
 import com.darkyen.tproll.util.AnsiColor;
@@ -58,7 +59,19 @@ public abstract class SimpleLogFunction extends LogFunction {
     }
 
     @Override
-    public final synchronized boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+    public final boolean log(@NotNull LogEvent event) {
+        if (event.getLocation() == null && event.getMDC().isEmpty() && event.getKeyValueCount() == 0) {
+            return super.log(event);
+        }
+        return log(event.getName(), event.getTime(), event.getLevel(), event.getMarker(), event, event.getContent());
+    }
+
+    @Override
+    public final boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        return log(name, time, level, marker, null, content);
+    }
+
+    private synchronized boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @Nullable LogEvent context, @NotNull CharSequence content) {
         final boolean color = this.ansiColor;
         final StringBuilder sb = this.sb;
         try {
@@ -121,6 +134,10 @@ public abstract class SimpleLogFunction extends LogFunction {
             if (color) sb.append(AnsiColor.PURPLE);
             sb.append(' ');
             sb.append(name);
+            if (context != null) {
+                if (color) sb.append(AnsiColor.BLACK);
+                context.appendContext(sb);
+            }
             if (color) sb.append(AnsiColor.BLACK);
             sb.append(':');
             sb.append(' ');
@@ -1,5 +1,6 @@
 package com.darkyen.tproll.logfunctions.adapters;
 
+import com.darkyen.tproll.LogEvent;
 import com.darkyen.tproll.LogFunction;
 import com.darkyen.tproll.logfunctions.AbstractAdapterLogFunction;
 import org.jetbrains.annotations.NotNull;
@@ -41,6 +42,15 @@ public final class LevelFilter extends AbstractAdapterLogFunction {
         return true;
     }
 
+    @Override
+    public boolean log(@NotNull LogEvent event) {
+        final byte level = event.getLevel();
+        if (level >= minLevel && level <= maxLevel) {
+            return parent.log(event);
+        }
+        return true;
+    }
+
     @Override
     public boolean isEnabled(byte level, Marker marker) {
         return level >= minLevel && level <= maxLevel && parent.isEnabled(level, marker);
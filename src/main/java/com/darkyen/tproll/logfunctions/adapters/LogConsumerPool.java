@@ -0,0 +1,78 @@
+package com.darkyen.tproll.logfunctions.adapters;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads shared by the consumers of several {@link ThreadedSafetyNet}s, so that each safety net
+ * does not need its own, mostly idle, thread. See {@link ThreadedSafetyNet#setConsumerPool(LogConsumerPool)}.
+ *
+ * Safety nets with waiting messages take turns. Each turn logs at most one batch, then the safety net goes
+ * to the back of the queue. A slow parent occupies one thread for the duration of its turn, so with more threads
+ * than slow parents, it can't starve the others. The threads are reused for all turns, even when the factory creates virtual threads.
+ *
+ * Shut the pool down only after all safety nets which use it are stopped.
+ */
+@SuppressWarnings("unused")
+public final class LogConsumerPool {
+
+    /** The pool which owns the current thread, for threads of any pool */
+    private static final ThreadLocal<@Nullable LogConsumerPool> WORKER_OF = new ThreadLocal<>();
+
+    private final @NotNull ScheduledThreadPoolExecutor executor;
+
+    /**
+     * @param threads amount of threads, which are started when needed
+     * @param threadFactory to create the threads
+     */
+    public LogConsumerPool(int threads, @NotNull ThreadFactory threadFactory) {
+        if (threads <= 0) throw new IllegalArgumentException("threads must be positive");
+        executor = new ScheduledThreadPoolExecutor(threads, runnable -> threadFactory.newThread(() -> {
+            WORKER_OF.set(this);
+            runnable.run();
+        }));
+        // Messages logged after shutdown are not delivered, but they must not fail in the logging thread
+        executor.setRejectedExecutionHandler(new ScheduledThreadPoolExecutor.DiscardPolicy());
+    }
+
+    /**
+     * Use low priority daemon threads.
+     * @param threads amount of threads, which are started when needed
+     */
+    public LogConsumerPool(int threads) {
+        this(threads, new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(@NotNull Runnable runnable) {
+                final Thread thread = new Thread(runnable, "LogConsumerPool-" + counter.incrementAndGet());
+                thread.setPriority(Thread.MIN_PRIORITY + 2);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /** @return true if the current thread belongs to this pool */
+    boolean isWorkerThread() {
+        return WORKER_OF.get() == this;
+    }
+
+    void execute(@NotNull Runnable task) {
+        executor.execute(task);
+    }
+
+    void schedule(@NotNull Runnable task, long delayNanos) {
+        executor.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** Let the threads finish. Call after all safety nets which use this pool are stopped. */
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,170 @@
+package com.darkyen.tproll.logfunctions.adapters;
+
+import com.darkyen.tproll.LogEvent;
+import com.darkyen.tproll.MDCMap;
+import com.darkyen.tproll.util.PrettyPrinter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Marker;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Message queued in a ring buffer of {@link ThreadedSafetyNet} or {@link StripedSafetyNet}.
+ * Slots are preallocated and reused, so the content buffer is reused as well.
+ */
+final class MessageData {
+
+    /** Content buffers which grew over this capacity (for example because of a huge stack trace) are not kept around */
+    private static final int MAX_RETAINED_CONTENT_CAPACITY = 16 * 1024;
+
+    /** Ring buffer slot is free for writing when sequence == position, readable when sequence == position + 1 */
+    volatile long sequence;
+    /** {@link System#nanoTime()} when the message was published, used only by {@link StripedSafetyNet} to merge the stripes */
+    long order;
+
+    @NotNull String name = "";
+    long time = 0L;
+    byte level = 0;
+    @Nullable Marker marker = null;
+    @Nullable StackTraceElement location = null;
+    /** Immutable, so no copy is needed */
+    @NotNull MDCMap mdc = MDCMap.EMPTY;
+    /** Keys and formatted values, interleaved, null if none */
+    @Nullable String @Nullable [] keyValues = null;
+    @NotNull StringBuilder content = new StringBuilder();
+
+    MessageData(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /** Fill this (empty) message with the message data */
+    void set(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        this.name = name;
+        this.time = time;
+        this.level = level;
+        this.marker = marker;
+        this.content.append(content);
+    }
+
+    /** Fill this (empty) message with the event, formatting it directly into the content */
+    void set(@NotNull LogEvent event) {
+        name = event.getName();
+        time = event.getTime();
+        level = event.getLevel();
+        marker = event.getMarker();
+        location = event.getLocation();
+        mdc = event.getMDC();
+        final int keyValueCount = event.getKeyValueCount();
+        if (keyValueCount > 0) {
+            // Values may be mutable, so they are formatted now, like the message
+            final String[] keyValues = this.keyValues = new String[keyValueCount * 2];
+            for (int i = 0; i < keyValueCount; i++) {
+                keyValues[i * 2] = event.getKey(i);
+                keyValues[i * 2 + 1] = PrettyPrinter.toString(event.getValue(i));
+            }
+        }
+        event.formatInto(content);
+    }
+
+    /** Set the event to this message. The event refers to the content, so it must be cleared before this message is. */
+    void toEvent(@NotNull LogEvent event) {
+        event.set(name, time, level, marker, content);
+        event.setLocation(location);
+        event.setMDC(mdc);
+        final String[] keyValues = this.keyValues;
+        if (keyValues != null) {
+            for (int i = 0; i < keyValues.length; i += 2) {
+                //noinspection ConstantConditions
+                event.addKeyValue(keyValues[i], keyValues[i + 1]);
+            }
+        }
+    }
+
+    /** Move the data from the slot into this (empty) message and leave the slot empty. Content buffers are swapped, not copied. */
+    void takeFrom(@NotNull MessageData slot) {
+        name = slot.name;
+        time = slot.time;
+        level = slot.level;
+        marker = slot.marker;
+        location = slot.location;
+        mdc = slot.mdc;
+        keyValues = slot.keyValues;
+        final StringBuilder emptyContent = content;
+        content = slot.content;
+        slot.content = emptyContent;
+
+        slot.name = "";
+        slot.marker = null;
+        slot.location = null;
+        slot.mdc = MDCMap.EMPTY;
+        slot.keyValues = null;
+    }
+
+    /** Copy the data of the other message into this (empty) message */
+    void copyFrom(@NotNull MessageData other) {
+        name = other.name;
+        time = other.time;
+        level = other.level;
+        marker = other.marker;
+        location = other.location;
+        mdc = other.mdc;
+        // Never modified, can be shared
+        keyValues = other.keyValues;
+        content.setLength(0);
+        content.append(other.content);
+    }
+
+    void appendRepeated(int repeats, long lastRepeatTime) {
+        content.append("\n(repeated ").append(repeats).append(" times over ").append(lastRepeatTime - time).append(" ms)");
+    }
+
+    /** @return hash of name, level, marker and content, the rest is rarely the only difference */
+    int fingerprint() {
+        int hash = name.hashCode();
+        hash = hash * 31 + level;
+        hash = hash * 31 + Objects.hashCode(marker);
+        final StringBuilder content = this.content;
+        for (int i = 0, length = content.length(); i < length; i++) {
+            hash = hash * 31 + content.charAt(i);
+        }
+        return hash;
+    }
+
+    /** Release references and clear the content */
+    void clear() {
+        name = "";
+        marker = null;
+        location = null;
+        mdc = MDCMap.EMPTY;
+        keyValues = null;
+        if (content.capacity() > MAX_RETAINED_CONTENT_CAPACITY) {
+            content = new StringBuilder();
+        } else {
+            content.setLength(0);
+        }
+    }
+
+    boolean matches(MessageData other) {
+        return name.equals(other.name) && level == other.level && Objects.equals(marker, other.marker) && Objects.equals(location, other.location) && mdc.equals(other.mdc) && Arrays.equals(keyValues, other.keyValues) && contentEquals(content, other.content);
+    }
+
+    private static boolean contentEquals(@NotNull CharSequence cs1, @NotNull CharSequence cs2) {
+        final int l1 = cs1.length();
+        final int l2 = cs2.length();
+        if (l1 != l2) {
+            return false;
+        }
+
+        for (int i = 0; i < l1; i++) {
+            final char c1 = cs1.charAt(i);
+            final char c2 = cs2.charAt(i);
+            if (c1 != c2) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -1,7 +1,9 @@
 package com.darkyen.tproll.logfunctions.adapters;
 
+import com.darkyen.tproll.LogEvent;
 import com.darkyen.tproll.LogFunction;
 import com.darkyen.tproll.logfunctions.AbstractAdapterLogFunction;
+import com.darkyen.tproll.util.VirtualThreads;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Marker;
@@ -12,6 +14,15 @@ import org.slf4j.Marker;
 @SuppressWarnings("unused")
 public final class Prepender extends AbstractAdapterLogFunction {
 
+    /** Event passed to the parent and its content, reused by each platform thread */
+    private static final class Prepended {
+        final @NotNull LogEvent event = new LogEvent();
+        final @NotNull StringBuilder content = new StringBuilder(64);
+        boolean inUse = false;
+    }
+
+    private static final @NotNull ThreadLocal<@NotNull Prepended> PREPENDED = ThreadLocal.withInitial(Prepended::new);
+
     private final @NotNull String prepend;
 
     public Prepender(@NotNull LogFunction parent, @NotNull String prepend) {
@@ -19,10 +30,41 @@ public final class Prepender extends AbstractAdapterLogFunction {
         this.prepend = prepend;
     }
 
+    @Override
+    public boolean log(@NotNull LogEvent event) {
+        Prepended prepended = VirtualThreads.isCurrentThreadVirtual() ? null : PREPENDED.get();
+        if (prepended == null || prepended.inUse) {
+            // Virtual thread, or the parent logs through this again
+            prepended = new Prepended();
+        }
+        prepended.inUse = true;
+        final LogEvent prependedEvent = prepended.event;
+        final StringBuilder content = prepended.content;
+        try {
+            prepend(content, event.getContent());
+            prependedEvent.set(event.getName(), event.getTime(), event.getLevel(), event.getMarker(), content);
+            prependedEvent.setLocation(event.getLocation());
+            prependedEvent.setMDC(event.getMDC());
+            for (int i = 0; i < event.getKeyValueCount(); i++) {
+                prependedEvent.addKeyValue(event.getKey(i), event.getValue(i));
+            }
+            return parent.log(prependedEvent);
+        } finally {
+            prependedEvent.clear();
+            content.setLength(0);
+            prepended.inUse = false;
+        }
+    }
+
     @Override
     public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        final StringBuilder sb = new StringBuilder((prepend.length() << 2) + content.length());
+        prepend(sb, content);
+        return parent.log(name, time, level, marker, sb);
+    }
+
+    private void prepend(@NotNull StringBuilder sb, @NotNull CharSequence content) {
         final int contentLen = content.length();
-        final StringBuilder sb = new StringBuilder(prepend.length() << 2 + contentLen);
         sb.append(prepend);
         for (int i = 0; i < contentLen; i++) {
             final char c = content.charAt(i);
@@ -31,6 +73,5 @@ public final class Prepender extends AbstractAdapterLogFunction {
                 sb.append(prepend);
             }
         }
-        return parent.log(name, time, level, marker, sb);
     }
 }
@@ -0,0 +1,307 @@
+package com.darkyen.tproll.logfunctions.adapters;
+
+import com.darkyen.tproll.LogEvent;
+import com.darkyen.tproll.MDCMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Marker;
+import org.slf4j.MarkerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**
+ * Overflow of {@link ThreadedSafetyNet}, see {@link ThreadedSafetyNet#setSpillFile(File)}.
+ * Messages which don't fit into the ring are appended to the file and the consumer reads them back in the same order.
+ * When the consumer catches up, the file is truncated and the ring is used again.
+ * Markers can't be serialized without losing their identity, so they are kept in memory, in the order of their records.
+ * To keep the memory bounded, only up to {@link #MAX_MARKERS_IN_MEMORY} of them, others are written by name
+ * and obtained from {@link MarkerFactory} when read, so only markers which don't come from it lose their identity.
+ *
+ * Writing is synchronized on this, reading is done only by the consumer.
+ */
+final class SpillFile {
+
+    /** How many markers can be kept in memory until the consumer reads the records written so far */
+    private static final int MAX_MARKERS_IN_MEMORY = 1024;
+
+    private static final byte MARKER_NONE = 0;
+    private static final byte MARKER_IN_MEMORY = 1;
+    private static final byte MARKER_BY_NAME = 2;
+
+    private final @NotNull File file;
+
+    private @Nullable FileOutputStream fileOut = null;
+    private @Nullable DataOutputStream out = null;
+    private @Nullable FileInputStream fileIn = null;
+    private @Nullable DataInputStream in = null;
+
+    /** For formatting events, guarded by this */
+    private final @NotNull MessageData scratch = new MessageData(0);
+
+    /** Amount of written records, guarded by this */
+    private long written = 0;
+    /** Amount of records read by the consumer */
+    private long read = 0;
+    /** Amount of records which are flushed and can be read by the consumer without locking */
+    private long readable = 0;
+
+    /** Markers of written records which keep them in memory, in order, guarded by this */
+    private final @NotNull ArrayDeque<@NotNull Marker> writtenMarkers = new ArrayDeque<>();
+    /** Markers of readable records which keep them in memory, in order, only for the consumer */
+    private final @NotNull ArrayDeque<@NotNull Marker> readableMarkers = new ArrayDeque<>();
+
+    /** Set while there are records which were not read yet, new messages must then be spilled as well, to keep the order */
+    volatile boolean active = false;
+
+    SpillFile(@NotNull File file) {
+        this.file = file;
+    }
+
+    void open() throws IOException {
+        final File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Can't create directory " + parent);
+        }
+        final FileOutputStream fileOut = new FileOutputStream(file, false);
+        this.fileOut = fileOut;
+        this.out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
+        final FileInputStream fileIn = new FileInputStream(file);
+        this.fileIn = fileIn;
+        this.in = new DataInputStream(new BufferedInputStream(fileIn, 64 * 1024));
+    }
+
+    /** Close and delete the file, any records that were not read are lost. */
+    synchronized void close() {
+        active = false;
+        writtenMarkers.clear();
+        readableMarkers.clear();
+        closeQuietly(out);
+        closeQuietly(in);
+        out = null;
+        in = null;
+        fileOut = null;
+        fileIn = null;
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    private static void closeQuietly(@Nullable AutoCloseable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (Exception ignored) {}
+        }
+    }
+
+    /** @return false if the message could not be written */
+    synchronized boolean write(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        final MessageData scratch = this.scratch;
+        try {
+            scratch.set(name, time, level, marker, content);
+            return write(scratch);
+        } finally {
+            scratch.clear();
+        }
+    }
+
+    /** @return false if the message could not be written */
+    synchronized boolean write(@NotNull LogEvent event) {
+        final MessageData scratch = this.scratch;
+        try {
+            scratch.set(event);
+            return write(scratch);
+        } finally {
+            scratch.clear();
+        }
+    }
+
+    private boolean write(@NotNull MessageData data) {
+        final DataOutputStream out = this.out;
+        if (out == null) {
+            return false;
+        }
+        final Marker marker = data.marker;
+        final boolean markerInMemory = marker != null && writtenMarkers.size() < MAX_MARKERS_IN_MEMORY;
+        try {
+            writeString(out, data.name);
+            out.writeLong(data.time);
+            out.writeByte(data.level);
+            if (marker == null) {
+                out.writeByte(MARKER_NONE);
+            } else if (markerInMemory) {
+                out.writeByte(MARKER_IN_MEMORY);
+            } else {
+                out.writeByte(MARKER_BY_NAME);
+                writeString(out, marker.getName());
+            }
+
+            final StackTraceElement location = data.location;
+            out.writeBoolean(location != null);
+            if (location != null) {
+                writeString(out, location.getClassName());
+                writeString(out, location.getMethodName());
+                writeString(out, location.getFileName());
+                out.writeInt(location.getLineNumber());
+            }
+
+            final MDCMap mdc = data.mdc;
+            out.writeInt(mdc.size());
+            for (int i = 0; i < mdc.size(); i++) {
+                writeString(out, mdc.key(i));
+                writeString(out, mdc.value(i));
+            }
+
+            final String[] keyValues = data.keyValues;
+            out.writeInt(keyValues == null ? -1 : keyValues.length);
+            if (keyValues != null) {
+                for (String keyValue : keyValues) {
+                    writeString(out, keyValue);
+                }
+            }
+
+            writeString(out, data.content.toString());
+        } catch (IOException e) {
+            // The file is unusable now, the consumer finds out when it reads the records which were not flushed
+            closeQuietly(out);
+            this.out = null;
+            return false;
+        }
+        if (markerInMemory) {
+            writtenMarkers.add(marker);
+        }
+        written++;
+        active = true;
+        return true;
+    }
+
+    /**
+     * Read the next record, only for the consumer.
+     * @return false if there are no more records, then the spill is no longer active
+     * @throws IOException when the record could not be read, call {@link #reset()} then, to find out how many records were lost
+     */
+    boolean read(@NotNull MessageData into) throws IOException {
+        if (read == readable) {
+            synchronized (this) {
+                if (read == written) {
+                    // Caught up, start over
+                    reset();
+                    return false;
+                }
+                final DataOutputStream out = this.out;
+                if (out == null) {
+                    throw new IOException("Writing to the spill file failed");
+                }
+                out.flush();
+                readable = written;
+                readableMarkers.addAll(writtenMarkers);
+                writtenMarkers.clear();
+            }
+        }
+
+        final DataInputStream in = this.in;
+        if (in == null) {
+            throw new IOException("Spill file is closed");
+        }
+        read++;
+        final String name = readString(in);
+        into.name = name == null ? "" : name;
+        into.time = in.readLong();
+        into.level = in.readByte();
+        final byte markerKind = in.readByte();
+        if (markerKind == MARKER_IN_MEMORY) {
+            into.marker = readableMarkers.poll();
+        } else if (markerKind == MARKER_BY_NAME) {
+            final String markerName = readString(in);
+            //noinspection ConstantConditions
+            into.marker = MarkerFactory.getMarker(markerName);
+        }
+
+        if (in.readBoolean()) {
+            final String className = readString(in);
+            final String methodName = readString(in);
+            final String fileName = readString(in);
+            final int lineNumber = in.readInt();
+            //noinspection ConstantConditions
+            into.location = new StackTraceElement(className, methodName, fileName, lineNumber);
+        }
+
+        final int mdcSize = in.readInt();
+        MDCMap mdc = MDCMap.EMPTY;
+        for (int i = 0; i < mdcSize; i++) {
+            final String key = readString(in);
+            //noinspection ConstantConditions
+            mdc = mdc.with(key, readString(in));
+        }
+        into.mdc = mdc;
+
+        final int keyValueCount = in.readInt();
+        if (keyValueCount >= 0) {
+            final String[] keyValues = new String[keyValueCount];
+            for (int i = 0; i < keyValueCount; i++) {
+                keyValues[i] = readString(in);
+            }
+            into.keyValues = keyValues;
+        }
+
+        final String content = readString(in);
+        if (content != null) {
+            into.content.append(content);
+        }
+        return true;
+    }
+
+    /**
+     * Drop all records and start over with an empty file.
+     * @return amount of records that were not read
+     */
+    synchronized long reset() throws IOException {
+        final long lost = written - read;
+        written = 0;
+        read = 0;
+        readable = 0;
+        active = false;
+        writtenMarkers.clear();
+        readableMarkers.clear();
+
+        final DataOutputStream out = this.out;
+        final FileOutputStream fileOut = this.fileOut;
+        final FileInputStream fileIn = this.fileIn;
+        if (out != null && fileOut != null && fileIn != null) {
+            out.flush();
+            fileOut.getChannel().truncate(0);
+            fileIn.getChannel().position(0);
+            // Discard what was buffered
+            in = new DataInputStream(new BufferedInputStream(fileIn, 64 * 1024));
+        }
+        return lost;
+    }
+
+    private static void writeString(@NotNull DataOutputStream out, @Nullable String string) throws IOException {
+        if (string == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static @Nullable String readString(@NotNull DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,486 @@
+package com.darkyen.tproll.logfunctions.adapters;
+
+import com.darkyen.tproll.LogEvent;
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.logfunctions.AbstractAdapterLogFunction;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Marker;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Collects messages from multiple threads and serializes them onto one thread, like {@link ThreadedSafetyNet},
+ * but each producer thread writes into one of several stripes (ring buffers), chosen by its thread id,
+ * so that producers on many cores don't contend on a single buffer. The stripes are not per-thread:
+ * all threads whose ids map to the same stripe share it, so each stripe is still written by multiple producers.
+ *
+ * The consumer thread merges the stripes in the order in which the messages were published.
+ * It takes runs of messages from one stripe, up to the oldest message waiting in any other stripe,
+ * so the stripes are scanned once per run and not once per message.
+ * Messages of one thread always keep their order. Messages of different threads, which were published
+ * at nearly the same moment, may be reordered, when one of them is delivered while the other is still being written.
+ *
+ * Messages are not deduplicated and all levels share the whole stripe.
+ * When a stripe is full, the message waits up to maxWaitUntilDropMs, then it is dropped and the drop is reported.
+ * Like in {@link ThreadedSafetyNet}, the time for which stop() keeps logging can be limited, see {@link #setDrainTimeout(long)}.
+ */
+@SuppressWarnings("unused")
+public final class StripedSafetyNet extends AbstractAdapterLogFunction {
+
+    /** Maximum amount of messages delivered to the parent at once, through {@link LogFunction#logBatch(LogEvent[], int)} */
+    private static final int MAX_BATCH_SIZE = 256;
+
+    private final long maxWaitUntilDropMs;
+    /** For how long should {@link #stop()} log the remaining messages, -1 for unlimited */
+    private long drainTimeoutMs = -1;
+
+    /** Amount of dropped messages, indexed by level */
+    private final AtomicIntegerArray dropped = new AtomicIntegerArray(TPLogger.LOG + 1);
+
+    /** Amount of stripes is a power of two */
+    private final @NotNull Stripe @NotNull [] stripes;
+    private final int stripeMask;
+
+    /**
+     * @param parent logger to log into
+     * @param stripes amount of ring buffers, rounded up to a power of two. 0 to use the amount of available processors.
+     * @param stripeCapacity capacity of each ring buffer, rounded up to a power of two
+     * @param maxWaitUntilDropMs for how many milliseconds should the log function block when the stripe is full before dropping the message. Set to -1 to never drop messages (and potentially block forever) or to 0 to never ever wait, even if it means that messages over capacity will be lost.
+     */
+    public StripedSafetyNet(@NotNull LogFunction parent, int stripes, int stripeCapacity, long maxWaitUntilDropMs) {
+        super(parent);
+        if (stripes < 0) throw new IllegalArgumentException("stripes must not be negative");
+        if (stripeCapacity <= 0) throw new IllegalArgumentException("stripeCapacity must be positive");
+        if (stripes == 0) {
+            stripes = Runtime.getRuntime().availableProcessors();
+        }
+        final int stripeCount = roundUpToPowerOfTwo(stripes);
+        final int stripeSize = roundUpToPowerOfTwo(stripeCapacity);
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            this.stripes[i] = new Stripe(stripeSize);
+        }
+        this.stripeMask = stripeCount - 1;
+        this.maxWaitUntilDropMs = maxWaitUntilDropMs;
+    }
+
+    /**
+     * Use one stripe per available processor.
+     * @see #StripedSafetyNet(LogFunction, int, int, long)
+     */
+    public StripedSafetyNet(@NotNull LogFunction parent, int stripeCapacity, long maxWaitUntilDropMs) {
+        this(parent, 0, stripeCapacity, maxWaitUntilDropMs);
+    }
+
+    /**
+     * Set for how long {@link #stop()} should keep logging the messages that are still waiting.
+     * When the timeout passes, the remaining messages are discarded and only their amount is logged, together with the time it took.
+     * While draining, messages are delivered one by one, so that the timeout is checked between them.
+     * Because the parent can't be interrupted in the middle of logging, stop() waits for at most twice the timeout,
+     * then it returns even if the (daemon) consumer thread is still logging. The parent is then stopped by the consumer,
+     * when it finishes.
+     *
+     * Default is -1, which logs all messages, no matter how long it takes.
+     * Call only before the log function is started.
+     */
+    public void setDrainTimeout(long drainTimeoutMs) {
+        this.drainTimeoutMs = drainTimeoutMs;
+    }
+
+    private static int roundUpToPowerOfTwo(int value) {
+        return value <= 1 ? 1 : Integer.highestOneBit(value - 1) << 1;
+    }
+
+    /** Thread ids are usually sequential, so threads are spread evenly over the stripes */
+    @SuppressWarnings("deprecation")
+    private @NotNull Stripe currentStripe() {
+        return stripes[(int) Thread.currentThread().getId() & stripeMask];
+    }
+
+    @Override
+    public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        final Stripe stripe = currentStripe();
+        final long position = claim(stripe, level);
+        if (position < 0) {
+            return false;
+        }
+        final MessageData data = stripe.slots[(int) position & stripe.mask];
+        try {
+            data.set(name, time, level, marker, content);
+        } finally {
+            publish(data, position);
+        }
+        return true;
+    }
+
+    /** Formats the event directly into the queued message, without intermediate copy. */
+    @Override
+    public boolean log(@NotNull LogEvent event) {
+        final Stripe stripe = currentStripe();
+        final long position = claim(stripe, event.getLevel());
+        if (position < 0) {
+            return false;
+        }
+        final MessageData data = stripe.slots[(int) position & stripe.mask];
+        try {
+            data.set(event);
+        } finally {
+            // Even if formatting fails, the slot must be published, otherwise the consumer would get stuck on it
+            publish(data, position);
+        }
+        return true;
+    }
+
+    /** @return true when the stripe of the current thread is at least half full, or when the parent is congested */
+    @Override
+    public boolean isCongested() {
+        final Stripe stripe = currentStripe();
+        return stripe.tail.get() - stripe.head >= Math.max(stripe.slots.length / 2, 1) || parent.isCongested();
+    }
+
+    /**
+     * Claim a free slot of the stripe for writing.
+     * @return position of the claimed slot or -1 if the message should be dropped
+     */
+    private long claim(@NotNull Stripe stripe, byte level) {
+        final MessageData[] slots = stripe.slots;
+        final AtomicLong tail = stripe.tail;
+
+        long waitDeadline = 0;
+        int waits = 0;
+        while (true) {
+            final long position = tail.get();
+            final long sequence = slots[(int) position & stripe.mask].sequence;
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    return position;
+                }
+                // Other thread of this stripe claimed it first, try next one
+                continue;
+            } else if (sequence > position) {
+                // Claimed by someone else in the meantime
+                continue;
+            }
+
+            // Full, the slot is still not consumed
+            if (maxWaitUntilDropMs == 0 || Thread.currentThread() == logThread) {
+                // Consumer would wait for itself, when something logs while it is logging
+                break;
+            }
+            if (maxWaitUntilDropMs > 0) {
+                final long now = System.nanoTime();
+                if (waits == 0) {
+                    waitDeadline = now + maxWaitUntilDropMs * 1_000_000L;
+                } else if (now - waitDeadline >= 0) {
+                    break;
+                }
+            }
+            // Back off, the consumer is behind
+            if (waits++ < 16) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(this, 100_000L);
+            }
+        }
+
+        dropped.incrementAndGet(Math.max(0, Math.min(level, TPLogger.LOG)));
+        return -1;
+    }
+
+    private void publish(@NotNull MessageData data, long position) {
+        // Stamped when the message becomes visible, so the merge follows the order of publishing
+        data.order = System.nanoTime();
+        data.sequence = position + 1;
+        final LogThread logThread = this.logThread;
+        if (logThread != null && logThread.parked) {
+            LockSupport.unpark(logThread);
+        }
+    }
+
+    /** Set by {@link #nextStripe()}: whether some other stripe has a message waiting, only for the consumer thread */
+    private boolean runBounded;
+    /** Set by {@link #nextStripe()}: order of the oldest message waiting in other stripes, only for the consumer thread */
+    private long runBound;
+
+    /**
+     * Find the stripe whose next message was published first, only for the consumer thread.
+     * Also sets {@link #runBounded} and {@link #runBound}, which limit how many messages can be taken from it.
+     * @return null if there are no messages
+     */
+    private @Nullable Stripe nextStripe() {
+        Stripe next = null;
+        long nextOrder = 0;
+        boolean bounded = false;
+        long bound = 0;
+        for (Stripe stripe : stripes) {
+            final long head = stripe.head;
+            final MessageData slot = stripe.slots[(int) head & stripe.mask];
+            if (slot.sequence != head + 1) {
+                continue;
+            }
+            final long order = slot.order;
+            if (next == null || order - nextOrder < 0) {
+                if (next != null) {
+                    // The previous best becomes the second best
+                    bound = nextOrder;
+                    bounded = true;
+                }
+                next = stripe;
+                nextOrder = order;
+            } else if (!bounded || order - bound < 0) {
+                bound = order;
+                bounded = true;
+            }
+        }
+        runBounded = bounded;
+        runBound = bound;
+        return next;
+    }
+
+    /** @return true if all claimed slots were consumed, only for the consumer thread */
+    private boolean isEmpty() {
+        for (Stripe stripe : stripes) {
+            if (stripe.tail.get() != stripe.head) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private volatile LogThread logThread = null;
+
+    private final class LogThread extends Thread {
+
+        private static final int STATE_RUNNING = 0;
+        private static final int STATE_RUNNING_UNTIL_EMPTY = 1;
+        private static final int STATE_STOP = 2;
+        volatile int state = STATE_RUNNING;
+
+        /** Set while the thread is parked or about to be, so that producers know that they should unpark it */
+        volatile boolean parked = false;
+        /** Released once by this thread when it finishes and once by {@link StripedSafetyNet#stop()}, see {@link #release()} */
+        private final @NotNull AtomicInteger holders = new AtomicInteger(2);
+        /** When the drain started and when it should end, in {@link System#nanoTime()}, published by the write to state */
+        private long drainStart, drainDeadline;
+
+        /** Messages waiting to be delivered together, owned by this thread */
+        private final @NotNull MessageData @NotNull [] batch;
+        private final @NotNull LogEvent @NotNull [] batchEvents;
+        private int batchSize = 0;
+
+        public LogThread() {
+            super("StripedSafetyNet");
+            final int batchCapacity = Math.min(stripes.length * stripes[0].slots.length, MAX_BATCH_SIZE);
+            batch = new MessageData[batchCapacity];
+            batchEvents = new LogEvent[batchCapacity];
+            for (int i = 0; i < batchCapacity; i++) {
+                batch[i] = new MessageData(0);
+                batchEvents[i] = new LogEvent();
+            }
+            setPriority(Thread.MIN_PRIORITY + 2);
+            setDaemon(true);
+        }
+
+        public void stopAndJoin(boolean runUntilEmpty, boolean join) {
+            if (state == STATE_RUNNING) {
+                drainStart = System.nanoTime();
+                drainDeadline = drainStart + drainTimeoutMs * 1_000_000L;
+                state = runUntilEmpty ? STATE_RUNNING_UNTIL_EMPTY : STATE_STOP;
+            }
+            LockSupport.unpark(this);
+
+            if (join) {
+                try {
+                    // Give the last write time to finish as well, 0 to wait forever
+                    this.join(drainTimeoutMs < 0 ? 0 : Math.max(1, drainTimeoutMs * 2));
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
+
+        /**
+         * Called once when this thread finishes and once by {@link StripedSafetyNet#stop()}, after waiting for it.
+         * The last one stops the parent, so that the parent is never stopped while this thread is still logging into it.
+         */
+        void release() {
+            if (holders.decrementAndGet() == 0) {
+                // The parent is stopped after the waiting messages are logged into it
+                parent.stop();
+            }
+        }
+
+        /** Wait until a message is available, the state changes or a spurious wakeup. */
+        private void awaitMessage() {
+            parked = true;
+            try {
+                // Check again after parked is set, otherwise a producer may have missed it
+                if (nextStripe() != null || state != STATE_RUNNING) {
+                    return;
+                }
+                LockSupport.park(StripedSafetyNet.this);
+            } finally {
+                parked = false;
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                drain();
+            } finally {
+                release();
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                final boolean timedDrain = drainTimeoutMs >= 0 && state == STATE_RUNNING_UNTIL_EMPTY;
+                if (timedDrain) {
+                    // Stopping, deliver the messages one by one and check the timeout between them
+                    if (batchSize > 0) {
+                        deliverBatch();
+                    }
+                    if (System.nanoTime() - drainDeadline >= 0) {
+                        discardBacklog();
+                        return;
+                    }
+                }
+
+                final Stripe stripe = nextStripe();
+                if (stripe == null) {
+                    if (batchSize > 0) {
+                        // Nothing more is available right now, deliver what we have before waiting
+                        deliverBatch();
+                        continue;
+                    }
+
+                    final int state = this.state;
+                    if (state == STATE_STOP) {
+                        return;
+                    } else if (state == STATE_RUNNING_UNTIL_EMPTY) {
+                        if (isEmpty()) {
+                            return;
+                        }
+                        // Some producer is still writing its message
+                        Thread.yield();
+                    } else {
+                        awaitMessage();
+                    }
+                    continue;
+                }
+
+                // Take the run of messages of this stripe, which were published before the oldest message of other stripes
+                final boolean runBounded = StripedSafetyNet.this.runBounded;
+                final long runBound = StripedSafetyNet.this.runBound;
+                long head = stripe.head;
+                MessageData slot = stripe.slots[(int) head & stripe.mask];
+                do {
+                    batch[batchSize].takeFrom(slot);
+                    stripe.head = head + 1;
+                    // Release the slot for the producers one lap later
+                    slot.sequence = head + stripe.slots.length;
+
+                    batch[batchSize].toEvent(batchEvents[batchSize]);
+                    if (++batchSize == batch.length) {
+                        deliverBatch();
+                        break;
+                    } else if (timedDrain) {
+                        break;
+                    }
+
+                    head++;
+                    slot = stripe.slots[(int) head & stripe.mask];
+                } while (slot.sequence == head + 1 && !(runBounded && slot.order - runBound > 0));
+            }
+        }
+
+        /** Discard all waiting messages, when the drain timeout passes, and log their amount instead */
+        private void discardBacklog() {
+            final AtomicIntegerArray discarded = new AtomicIntegerArray(TPLogger.LOG + 1);
+            final MessageData message = batch[0];
+            for (Stripe stripe : stripes) {
+                while (true) {
+                    final long head = stripe.head;
+                    final MessageData slot = stripe.slots[(int) head & stripe.mask];
+                    if (slot.sequence == head + 1) {
+                        message.takeFrom(slot);
+                        stripe.head = head + 1;
+                        slot.sequence = head + stripe.slots.length;
+                        ThreadedSafetyNet.countLevel(discarded, message.level);
+                        message.clear();
+                    } else if (stripe.tail.get() == head) {
+                        break;
+                    } else {
+                        // Some producer is still writing its message
+                        Thread.yield();
+                    }
+                }
+            }
+
+            final StringBuilder report = new StringBuilder();
+            final int total = ThreadedSafetyNet.appendLevelCounts(report, discarded);
+            if (total > 0) {
+                final long drainMs = (System.nanoTime() - drainStart) / 1_000_000L;
+                parent.log("StripedSafetyNet", System.currentTimeMillis(), TPLogger.LOG, null, "Discarded "+total+" log(s) at shutdown after draining for "+drainMs+" ms ("+report+")");
+            }
+            ThreadedSafetyNet.reportDropped(parent, dropped, "StripedSafetyNet");
+        }
+
+        private void deliverBatch() {
+            final int batchSize = this.batchSize;
+            try {
+                parent.logBatch(batchEvents, batchSize);
+            } finally {
+                for (int i = 0; i < batchSize; i++) {
+                    batchEvents[i].clear();
+                    batch[i].clear();
+                }
+                this.batchSize = 0;
+            }
+
+            ThreadedSafetyNet.reportDropped(parent, dropped, "StripedSafetyNet");
+        }
+    }
+
+    @Override
+    public void start() {
+        super.start();
+        (this.logThread = new LogThread()).start();
+    }
+
+    @Override
+    public void stop() {
+        final LogThread thread = this.logThread;
+        try {
+            thread.stopAndJoin(true, true);
+        } finally {
+            this.logThread = null;
+            // Stops the parent, unless the thread is still running, then it does so when it finishes
+            thread.release();
+        }
+    }
+
+    /** Ring buffer written by the threads of one stripe */
+    private static final class Stripe {
+        /** Size is a power of two */
+        final @NotNull MessageData @NotNull [] slots;
+        final int mask;
+        /** Position of the next slot to be claimed by a producer */
+        final @NotNull AtomicLong tail = new AtomicLong(0);
+        /** Position of the next slot to be read by the consumer, written only by the consumer */
+        volatile long head = 0;
+
+        Stripe(int size) {
+            slots = new MessageData[size];
+            for (int i = 0; i < size; i++) {
+                slots[i] = new MessageData(i);
+            }
+            mask = size - 1;
+        }
+    }
+}
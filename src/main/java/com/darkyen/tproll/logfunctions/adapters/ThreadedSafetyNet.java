@@ -1,5 +1,6 @@
 package com.darkyen.tproll.logfunctions.adapters;
 
+import com.darkyen.tproll.LogEvent;
 import com.darkyen.tproll.LogFunction;
 import com.darkyen.tproll.TPLogger;
 import com.darkyen.tproll.logfunctions.AbstractAdapterLogFunction;
@@ -7,250 +8,1062 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Marker;
 
-import java.util.Objects;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Collects messages from multiple threads and serializes them onto one thread,
  * without blocking the original threads.
  *
- * It also collapses duplicate messages.
+ * It also collapses duplicate messages, either consecutive ones or, with {@link #setDeduplicationWindow(int)}, any recent ones.
+ *
+ * Messages are passed through a lock-free ring buffer of preallocated slots, whose buffers are reused,
+ * so logging through the safety net does not allocate in steady state.
+ * Optionally, TRACE and DEBUG messages can be dropped first under pressure, and part of the capacity can be reserved
+ * for WARN, ERROR and LOG messages, see {@link #setLowPriorityLimit(int)} and {@link #setReservedCapacity(int)}.
+ * All messages that are waiting are delivered to the parent at once, through {@link LogFunction#logBatch(LogEvent[], int)}.
+ * How the consumer thread waits for messages can be chosen through {@link #setWaitStrategy(WaitStrategy)}.
+ * Several safety nets can share consumer threads, see {@link #setConsumerPool(LogConsumerPool)}.
+ * Instead of waiting or dropping, messages which don't fit can be spilled to a file, see {@link #setSpillFile(File)}.
  */
 public final class ThreadedSafetyNet extends AbstractAdapterLogFunction {
 
+    /** Maximum amount of messages delivered to the parent at once, through {@link LogFunction#logBatch(LogEvent[], int)} */
+    private static final int MAX_BATCH_SIZE = 256;
+
     private final long maxWaitUntilDropMs;
     private final long deduplicationMs;
 
-    private final AtomicInteger dropped = new AtomicInteger(0);
+    /** Amount of dropped messages, indexed by level */
+    private final AtomicIntegerArray dropped = new AtomicIntegerArray(TPLogger.LOG + 1);
+
+    /** TRACE and DEBUG messages are dropped (without waiting) when the ring holds this many messages, capacity to treat them as INFO */
+    private int lowPriorityLimit;
+    /** Slots which can be used only by WARN, ERROR and LOG messages */
+    private int reservedCapacity;
+    /** When true, WARN, ERROR and LOG messages are never dropped, but wait for space indefinitely */
+    private boolean blockHighPriority = false;
+    /** How the consumer thread waits for new messages */
+    private @NotNull WaitStrategy waitStrategy = WaitStrategy.BLOCKING;
+    /** How many recent distinct messages are remembered for deduplication, 0 to collapse only consecutive messages */
+    private int deduplicationWindow = 0;
+    /** For how long should {@link #stop()} log the remaining messages, -1 for unlimited */
+    private long drainTimeoutMs = -1;
+    /** Pool which runs the consumer, null if it has its own thread */
+    private @Nullable LogConsumerPool consumerPool = null;
+    /** File for messages which don't fit into the ring, null to drop them */
+    private @Nullable File spillFile = null;
+    /** Opened spill file, while started */
+    private volatile @Nullable SpillFile spill = null;
 
-    private final ArrayBlockingQueue<MessageData> queue;
+    /** Ring buffer, size is a power of two */
+    private final @NotNull MessageData @NotNull [] slots;
+    private final int mask;
+    /** Position of the next slot to be claimed by a producer */
+    private final @NotNull AtomicLong tail = new AtomicLong(0);
+    /** Position of the next slot to be read by the consumer, written only by the consumer, read by producers to find occupancy */
+    private volatile long head = 0;
 
     /**
      * @param parent logger to log into
-     * @param capacity of the internal message buffer, greater capacity uses more memory but handles longer bursts without blocking or dropping
-     * @param maxWaitUntilDropMs for how many milliseconds should the log function block when the buffer is full before dropping the message. Set to -1 to never drop messages (and potentially block forever) or to 0 to never ever wait, even if it means that messages over capacity will be lost.
+     * @param capacity of the internal message buffer, greater capacity uses more memory but handles longer bursts without blocking or dropping. Rounded up to a power of two.
+     * All levels share the whole capacity and wait for free space the same way, unless level bands are set
+     * through {@link #setLowPriorityLimit(int)} and {@link #setReservedCapacity(int)}.
+     *
+     * @param maxWaitUntilDropMs for how many milliseconds should the log function block when the buffer is full before dropping the message. Set to -1 to never drop messages (and potentially block forever) or to 0 to never ever wait, even if it means that messages over capacity will be lost. TRACE and DEBUG messages over the low priority limit are dropped regardless.
      * @param deduplicationMs sequential identical messages (identical in all but time) that arrive within this many milliseconds will be collapsed into one message. -1 to disable collapsing.
      */
     public ThreadedSafetyNet(LogFunction parent, int capacity, long maxWaitUntilDropMs, long deduplicationMs) {
         super(parent);
-        this.queue = new ArrayBlockingQueue<>(capacity, false);
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+        final int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.slots = new MessageData[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new MessageData(i);
+        }
+        this.mask = size - 1;
+        this.lowPriorityLimit = size;
+        this.reservedCapacity = 0;
         this.maxWaitUntilDropMs = maxWaitUntilDropMs;
         this.deduplicationMs = deduplicationMs;
     }
 
+    /**
+     * Set how many messages may be waiting in the buffer, before TRACE and DEBUG messages start being dropped.
+     * These messages never wait for free space. Default is the whole capacity, in which case they are treated like INFO messages.
+     * Call only before the log function is started.
+     */
+    public void setLowPriorityLimit(int messages) {
+        this.lowPriorityLimit = Math.max(1, Math.min(messages, slots.length));
+    }
+
+    /**
+     * Set how much of the capacity is reserved for WARN, ERROR and LOG messages.
+     * INFO messages wait or are dropped when only the reserved capacity remains. Default is 0.
+     * Call only before the log function is started.
+     */
+    public void setReservedCapacity(int messages) {
+        this.reservedCapacity = Math.max(0, Math.min(messages, slots.length - 1));
+    }
+
+    /**
+     * Set whether WARN, ERROR and LOG messages should wait for free space indefinitely, instead of respecting maxWaitUntilDropMs.
+     * Default is false. Call only before the log function is started.
+     */
+    public void setBlockHighPriority(boolean blockHighPriority) {
+        this.blockHighPriority = blockHighPriority;
+    }
+
+    /**
+     * Set how the consumer thread waits for new messages. Default is {@link WaitStrategy#BLOCKING}.
+     * Call only before the log function is started.
+     */
+    public void setWaitStrategy(@NotNull WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Set how many recent distinct messages are remembered for deduplication.
+     * When a message repeats any of them within deduplicationMs after its first occurrence, it is only counted
+     * and the count is logged when the window closes, as a copy of the message with the amount of repeats.
+     * Unlike the default deduplication, this collapses interleaved repeats (A, B, A, B, ...) and the first occurrence
+     * is logged immediately. When more distinct messages arrive, the least recently seen one is forgotten and its count logged early.
+     *
+     * Default is 0, which collapses only consecutive messages. Has no effect when deduplicationMs is not positive.
+     * Call only before the log function is started.
+     */
+    public void setDeduplicationWindow(int recentMessages) {
+        this.deduplicationWindow = Math.max(0, recentMessages);
+    }
+
+    /**
+     * Set for how long {@link #stop()} should keep logging the messages that are still waiting.
+     * When the timeout passes, the remaining messages are discarded and only their amount is logged, together with the time it took.
+     * While draining, messages are delivered one by one, so that the timeout is checked between them.
+     * Because the parent can't be interrupted in the middle of logging, stop() waits for at most twice the timeout,
+     * then it returns even if the (daemon) consumer thread is still logging. The parent is then stopped by the consumer,
+     * when it finishes.
+     *
+     * Default is -1, which logs all messages, no matter how long it takes.
+     * Call only before the log function is started.
+     */
+    public void setDrainTimeout(long drainTimeoutMs) {
+        this.drainTimeoutMs = drainTimeoutMs;
+    }
+
+    /**
+     * Let the consumer run in a pool, which can be shared with other safety nets, instead of on its own thread.
+     * The wait strategy is not used then. Default is null, which means own thread.
+     * Call only before the log function is started.
+     */
+    public void setConsumerPool(@Nullable LogConsumerPool consumerPool) {
+        this.consumerPool = consumerPool;
+    }
+
+    /**
+     * Set the file into which the messages that don't fit into the buffer are appended, instead of waiting or being dropped.
+     * The messages are read back and logged in order, when the consumer catches up. Until then, all new messages
+     * are appended to the file as well, so the memory use stays bounded. The file is truncated whenever the consumer
+     * catches up and deleted when the log function is stopped. Messages are dropped only if the file can't be written.
+     *
+     * Default is null, which means no file. Call only before the log function is started.
+     */
+    public void setSpillFile(@Nullable File spillFile) {
+        this.spillFile = spillFile;
+    }
+
     @Override
     public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
-        final MessageData data = new MessageData();
-        data.name = name;
-        data.time = time;
-        data.level = level;
-        data.marker = marker;
-        data.content.append(content);
+        final SpillFile spill = this.spill;
+        if (spill == null || !spill.active) {
+            final long position = claim(level, spill == null);
+            if (position >= 0) {
+                final MessageData data = slots[(int) position & mask];
+                try {
+                    data.set(name, time, level, marker, content);
+                } finally {
+                    publish(data, position);
+                }
+                return true;
+            } else if (spill == null) {
+                countLevel(dropped, level);
+                return false;
+            }
+        }
+        return spilled(spill.write(name, time, level, marker, content), level);
+    }
 
-        try {
-            if (maxWaitUntilDropMs < 0) {
-                queue.put(data);
+    /** Formats the event directly into the queued message, without intermediate copy. */
+    @Override
+    public boolean log(@NotNull LogEvent event) {
+        final SpillFile spill = this.spill;
+        if (spill == null || !spill.active) {
+            final long position = claim(event.getLevel(), spill == null);
+            if (position >= 0) {
+                final MessageData data = slots[(int) position & mask];
+                try {
+                    data.set(event);
+                } finally {
+                    // Even if formatting fails, the slot must be published, otherwise the consumer would get stuck on it
+                    publish(data, position);
+                }
                 return true;
+            } else if (spill == null) {
+                countLevel(dropped, event.getLevel());
+                return false;
+            }
+        }
+        return spilled(spill.write(event), event.getLevel());
+    }
+
+    /**
+     * @return true when the buffer is at least half full, or holds so many messages that TRACE and DEBUG are being dropped,
+     * when spilling to file, or when the parent is congested
+     */
+    @Override
+    public boolean isCongested() {
+        if (tail.get() - head >= Math.min(lowPriorityLimit, Math.max(slots.length / 2, 1))) {
+            return true;
+        }
+        final SpillFile spill = this.spill;
+        return (spill != null && spill.active) || parent.isCongested();
+    }
+
+    private boolean spilled(boolean written, byte level) {
+        if (!written) {
+            countLevel(dropped, level);
+        }
+        final Consumer consumer = this.consumer;
+        if (consumer != null) {
+            consumer.signal();
+        }
+        return written;
+    }
+
+    /**
+     * Claim a free slot for writing.
+     * Each level band may use only part of the buffer, so that less important messages are dropped first.
+     * @param mayWait false to never wait for free space
+     * @return position of the claimed slot or -1 if the message doesn't fit
+     */
+    private long claim(byte level, boolean mayWait) {
+        final MessageData[] slots = this.slots;
+        final AtomicLong tail = this.tail;
+
+        final int limit;
+        final long maxWaitUntilDropMs;
+        if (level <= TPLogger.DEBUG && lowPriorityLimit < slots.length) {
+            limit = lowPriorityLimit;
+            maxWaitUntilDropMs = 0;
+        } else if (level <= TPLogger.INFO) {
+            limit = slots.length - reservedCapacity;
+            maxWaitUntilDropMs = this.maxWaitUntilDropMs;
+        } else {
+            limit = slots.length;
+            maxWaitUntilDropMs = blockHighPriority ? -1 : this.maxWaitUntilDropMs;
+        }
+
+        long waitDeadline = 0;
+        int waits = 0;
+        while (true) {
+            final long position = tail.get();
+            final long sequence = slots[(int) position & mask].sequence;
+            final boolean full;
+            if (position - head >= limit) {
+                // Full for this level, the check is not atomic, so the limit may be slightly exceeded under contention
+                full = true;
+            } else if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    return position;
+                }
+                // Some other producer claimed it first, try next one
+                continue;
             } else {
-                if (queue.offer(data, maxWaitUntilDropMs, TimeUnit.MILLISECONDS)) {
-                    return true;
+                // Full if the slot is still not consumed, otherwise it has been claimed by someone else in the meantime
+                full = sequence < position;
+            }
+
+            if (full) {
+                if (maxWaitUntilDropMs == 0 || !mayWait || isConsumerThread()) {
+                    // Consumer would wait for itself, when something logs while it is logging
+                    break;
+                }
+                if (maxWaitUntilDropMs > 0) {
+                    final long now = System.nanoTime();
+                    if (waits == 0) {
+                        waitDeadline = now + maxWaitUntilDropMs * 1_000_000L;
+                    } else if (now - waitDeadline >= 0) {
+                        break;
+                    }
+                }
+                // Back off, the consumer is behind
+                if (waits++ < 16) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(this, 100_000L);
                 }
             }
-        } catch (InterruptedException ignored) {}
+        }
+
+        return -1;
+    }
 
-        dropped.incrementAndGet();
-        return false;
+    private void publish(@NotNull MessageData data, long position) {
+        data.sequence = position + 1;
+        final Consumer consumer = this.consumer;
+        if (consumer != null) {
+            consumer.signal();
+        }
+    }
+
+    /** Check if the consumer can read the next slot or the spill file, only for the consumer thread */
+    private boolean available() {
+        final long head = this.head;
+        if (slots[(int) head & mask].sequence == head + 1) {
+            return true;
+        }
+        final SpillFile spill = this.spill;
+        return spill != null && spill.active;
+    }
+
+    /** @return true if there are no messages in the ring nor in the spill file, only for the consumer thread */
+    private boolean isEmpty() {
+        if (tail.get() != head) {
+            return false;
+        }
+        final SpillFile spill = this.spill;
+        return spill == null || !spill.active;
     }
 
-    private volatile LogThread logThread = null;
+    /**
+     * Move the next message out of the ring into the consumer's own message, only for the consumer thread.
+     * @param into empty message, which will receive the data
+     * @return false if there is no message to take
+     */
+    private boolean poll(@NotNull MessageData into) {
+        final long head = this.head;
+        final MessageData slot = slots[(int) head & mask];
+        if (slot.sequence != head + 1) {
+            return false;
+        }
+        into.takeFrom(slot);
+        this.head = head + 1;
+        // Release the slot for the producers one lap later
+        slot.sequence = head + slots.length;
+        return true;
+    }
+
+    /**
+     * Like {@link #poll(MessageData)}, but when the ring is empty, the message is read from the spill file, if any.
+     * Only for the consumer thread.
+     */
+    private boolean take(@NotNull MessageData into) {
+        if (poll(into)) {
+            return true;
+        }
+        final SpillFile spill = this.spill;
+        // Spilled messages come after everything in the ring, including the slots which are still being written
+        if (spill == null || !spill.active || tail.get() != head) {
+            return false;
+        }
+        try {
+            return spill.read(into);
+        } catch (IOException e) {
+            into.clear();
+            long lost;
+            try {
+                lost = spill.reset();
+            } catch (IOException resetException) {
+                e.addSuppressed(resetException);
+                lost = -1;
+            }
+            parent.log("ThreadedSafetyNet", System.currentTimeMillis(), TPLogger.LOG, null, "Spill file failed, "+(lost < 0 ? "some" : Long.toString(lost))+" log(s) lost: "+e);
+            return false;
+        }
+    }
 
-    private final class LogThread extends Thread {
+    private volatile Consumer consumer = null;
+
+    /** @return true if the current thread must not wait for free space, because it could be waiting for itself */
+    private boolean isConsumerThread() {
+        final Consumer consumer = this.consumer;
+        return consumer != null && consumer.isConsumerThread();
+    }
+
+    /** Takes the messages out of the ring and logs them into the parent, either on its own thread or in a {@link LogConsumerPool} */
+    private final class Consumer implements Runnable {
 
         private static final int STATE_RUNNING = 0;
-        private static final int STATE_BLOCKING = 1;
-        private static final int STATE_RUNNING_UNTIL_EMPTY = 2;
-        private static final int STATE_STOP = 3;
-        public final AtomicInteger state = new AtomicInteger(STATE_RUNNING);
+        private static final int STATE_RUNNING_UNTIL_EMPTY = 1;
+        private static final int STATE_STOP = 2;
+        volatile int state = STATE_RUNNING;
+
+        /** Own thread of the consumer, null when pooled */
+        private final @Nullable Thread thread;
+        /** Pool which runs the consumer, null when it has its own thread */
+        private final @Nullable LogConsumerPool pool;
+
+        /** Set while the thread is parked or about to be, so that producers know that they should unpark it */
+        volatile boolean parked = false;
+        /** When pooled, set while the consumer is submitted to the pool or running in it, so that producers know that they should submit it */
+        private final @NotNull AtomicBoolean scheduled = new AtomicBoolean(false);
+        /** When pooled, released when the consumer is done */
+        private final @NotNull CountDownLatch finished = new CountDownLatch(1);
+        /** Released once by the consumer when it finishes and once by {@link ThreadedSafetyNet#stop()}, see {@link #release()} */
+        private final @NotNull AtomicInteger holders = new AtomicInteger(2);
+        private final @NotNull Runnable schedule = this::schedule;
 
-        public LogThread() {
-            super("ThreadedSafetyNet");
-            setPriority(Thread.MIN_PRIORITY + 2);
-            setDaemon(true);
+        Consumer(@Nullable LogConsumerPool pool) {
+            final int batchCapacity = Math.min(slots.length, MAX_BATCH_SIZE);
+            batch = new MessageData[batchCapacity];
+            batchEvents = new LogEvent[batchCapacity];
+            for (int i = 0; i < batchCapacity; i++) {
+                batch[i] = new MessageData(0);
+                batchEvents[i] = new LogEvent();
+            }
+            recent = new RecentMessage[deduplicationMs > 0 ? deduplicationWindow : 0];
+            for (int i = 0; i < recent.length; i++) {
+                recent[i] = new RecentMessage();
+            }
+
+            this.pool = pool;
+            if (pool == null) {
+                final Thread thread = new Thread(this, "ThreadedSafetyNet");
+                thread.setPriority(Thread.MIN_PRIORITY + 2);
+                thread.setDaemon(true);
+                this.thread = thread;
+            } else {
+                this.thread = null;
+            }
         }
 
-        public void stopAndJoin(boolean runUntilEmpty, boolean join) {
-            final int newState = runUntilEmpty ? STATE_RUNNING_UNTIL_EMPTY : STATE_STOP;
-            while (true) {
-                final int state = this.state.get();
-                if (state == STATE_RUNNING) {
-                    if (this.state.compareAndSet(state, newState)) {
-                        break;
-                    }
-                } else if (state == STATE_BLOCKING) {
-                    if (this.state.compareAndSet(state, newState)) {
-                        this.interrupt();
-                        break;
-                    }
+        void start() {
+            if (thread != null) {
+                thread.start();
+            }
+        }
+
+        boolean isConsumerThread() {
+            final LogConsumerPool pool = this.pool;
+            // Worker of the pool could be waiting for itself, or for other workers, which are waiting as well
+            return pool == null ? Thread.currentThread() == thread : pool.isWorkerThread();
+        }
+
+        /** Let the consumer know that a new message was published */
+        void signal() {
+            if (pool == null) {
+                if (parked) {
+                    LockSupport.unpark(thread);
+                }
+            } else {
+                schedule();
+            }
+        }
+
+        /** Submit the pooled consumer to the pool, unless it is already submitted or running */
+        private void schedule() {
+            final LogConsumerPool pool = this.pool;
+            assert pool != null;
+            if (!scheduled.get() && scheduled.compareAndSet(false, true)) {
+                pool.execute(this);
+            }
+        }
+
+        /** When the drain started and when it should end, in {@link System#nanoTime()}, published by the write to state */
+        private long drainStart, drainDeadline;
+
+        public void stopAndJoin(boolean runUntilEmpty) {
+            if (state == STATE_RUNNING) {
+                drainStart = System.nanoTime();
+                drainDeadline = drainStart + drainTimeoutMs * 1_000_000L;
+                state = runUntilEmpty ? STATE_RUNNING_UNTIL_EMPTY : STATE_STOP;
+            }
+
+            // Give the last write time to finish as well, 0 to wait forever
+            final long joinTimeoutMs = drainTimeoutMs < 0 ? 0 : Math.max(1, drainTimeoutMs * 2);
+            try {
+                final Thread thread = this.thread;
+                if (thread != null) {
+                    LockSupport.unpark(thread);
+                    thread.join(joinTimeoutMs);
                 } else {
-                    // Looks like it has already been stopped
-                    break;
+                    schedule();
+                    if (joinTimeoutMs == 0) {
+                        finished.await();
+                    } else {
+                        //noinspection ResultOfMethodCallIgnored
+                        finished.await(joinTimeoutMs, TimeUnit.MILLISECONDS);
+                    }
                 }
+            } catch (InterruptedException ignored) {
             }
+        }
 
-            if (join) {
-                try {
-                    this.join();
-                } catch (InterruptedException ignored) {
+        /**
+         * Called once when the consumer finishes and once by {@link ThreadedSafetyNet#stop()}, after waiting for it.
+         * The last one closes the spill file and stops the parent, so that the parent is never stopped while the consumer is still logging into it.
+         */
+        void release() {
+            if (holders.decrementAndGet() != 0) {
+                return;
+            }
+            try {
+                final SpillFile spill = ThreadedSafetyNet.this.spill;
+                if (spill != null) {
+                    ThreadedSafetyNet.this.spill = null;
+                    spill.close();
                 }
+            } finally {
+                // The parent is stopped after the waiting messages are logged into it
+                parent.stop();
             }
         }
 
-        @Override
-        public void run() {
-            MessageData nextData = null;
-            final LogFunction parent = ThreadedSafetyNet.this.parent;
-            final ArrayBlockingQueue<MessageData> queue = ThreadedSafetyNet.this.queue;
-            while (true) {
-                int state = this.state.get();
-                final MessageData messageData;
-                if (nextData != null) {
-                    messageData = nextData;
-                    nextData = null;
-                } else if (state == STATE_STOP) {
+        /** How many times in a row {@link #awaitMessage(long)} was called without a message arriving, for back-off */
+        private int idleWaits = 0;
+
+        /** Wait until a message is available, the deadline (in {@link System#nanoTime()}) passes, the state changes or a spurious wakeup. */
+        private void awaitMessage(long deadline) {
+            final int idleWaits = this.idleWaits;
+            if (idleWaits != Integer.MAX_VALUE) {
+                this.idleWaits = idleWaits + 1;
+            }
+
+            switch (waitStrategy) {
+                case BUSY_SPIN:
+                    // Return immediately, the caller polls again
+                    return;
+                case YIELD:
+                    if (idleWaits >= SPIN_WAITS) {
+                        Thread.yield();
+                    }
                     return;
-                } else if (state == STATE_RUNNING_UNTIL_EMPTY) {
-                    messageData = queue.poll();
-                    if (messageData == null) {
+                case PARK_BACKOFF: {
+                    if (idleWaits < SPIN_WAITS) {
+                        return;
+                    } else if (idleWaits < SPIN_WAITS + YIELD_WAITS) {
+                        Thread.yield();
                         return;
                     }
+                    // Producers don't unpark the thread, so it has to wake up by itself
+                    final long backoff = MIN_PARK_NANOS << Math.min(idleWaits - SPIN_WAITS - YIELD_WAITS, MAX_PARK_SHIFT);
+                    final long remaining = deadline - System.nanoTime();
+                    if (remaining > 0) {
+                        LockSupport.parkNanos(ThreadedSafetyNet.this, Math.min(remaining, backoff));
+                    }
+                    return;
+                }
+                case BLOCKING:
+                default:
+                    break;
+            }
+
+            parked = true;
+            try {
+                // Check again after parked is set, otherwise a producer may have missed it
+                if (available() || state != STATE_RUNNING) {
+                    return;
+                }
+                if (deadline == Long.MAX_VALUE) {
+                    LockSupport.park(ThreadedSafetyNet.this);
                 } else {
-                    assert state == STATE_RUNNING;
-                    if (!this.state.compareAndSet(state, STATE_BLOCKING)) {
-                        continue;// State has just changed! Are we are being shut-down?
+                    final long remaining = deadline - System.nanoTime();
+                    if (remaining > 0) {
+                        LockSupport.parkNanos(ThreadedSafetyNet.this, remaining);
                     }
-                    // Now we are open to interruptions
-                    try {
-                        try {
-                            messageData = queue.take();
-                        } catch (InterruptedException e) {
-                            // Just as we suspected, we are being shut down.
-                            // Just in case it is an error, cycle again.
-                            continue;
+                }
+            } finally {
+                parked = false;
+            }
+        }
+
+        /** Messages waiting to be delivered together, owned by this thread */
+        private final @NotNull MessageData @NotNull [] batch;
+        private final @NotNull LogEvent @NotNull [] batchEvents;
+        private int batchSize = 0;
+
+        /** Recently seen messages, for {@link #setDeduplicationWindow(int)}, empty when only consecutive messages are collapsed */
+        private final @NotNull RecentMessage @NotNull [] recent;
+        /** Counter for finding the least recently used recent message */
+        private long recentUses = 0;
+        /** Amount of recent messages which were repeated and whose count has to be logged when their window closes */
+        private int recentPending = 0;
+        /** Earliest window end ({@link System#nanoTime()}) of the pending recent messages, valid when recentPending > 0 */
+        private long recentPendingEnd = 0;
+        /** Empty message, swapped in to hold an evicted recent message */
+        private @NotNull MessageData spare = new MessageData(0);
+
+        /** Message which was taken out of the ring, but not processed yet, valid when haveLookahead */
+        private @NotNull MessageData lookahead = new MessageData(0);
+        private boolean haveLookahead = false;
+        /** Consecutive deduplication: the message at batch[batchSize] is waiting for its duplicates until holdDeadline ({@link System#nanoTime()}) */
+        private boolean holding = false;
+        private long holdDeadline = 0;
+        private int repeats = 0;
+        private long lastRepeatTime = 0;
+
+        /** Set when the consumer has finished */
+        private boolean done = false;
+        /** When {@link #service(int)} returns false, when it should be called again even if nothing happens, in {@link System#nanoTime()}, Long.MAX_VALUE if never */
+        private long wakeUp = Long.MAX_VALUE;
+
+        @Override
+        public void run() {
+            if (pool != null) {
+                runPooled(pool);
+                return;
+            }
+
+            try {
+                while (true) {
+                    if (service(Integer.MAX_VALUE)) {
+                        if (state != STATE_RUNNING) {
+                            // Some producer is still writing its message
+                            Thread.yield();
                         }
-                    } finally {
-                        // If we are still running normally, switch it back.
-                        // If we were interrupted in meantime, it will be handled later, we have already popped the message and we have to use it.
-                        this.state.compareAndSet(STATE_BLOCKING, STATE_RUNNING);
+                    } else if (done) {
+                        return;
+                    } else {
+                        awaitMessage(wakeUp);
                     }
                 }
+            } finally {
+                release();
+            }
+        }
 
-                // Deduplication
-                int repeats = 0;
-                long lastRepeatTime = 0;
-                // Simple non-blocking deduplication
-                if (deduplicationMs == 0L) {
-                    while (true) {
-                        nextData = queue.poll();
-                        if (nextData == null) {
-                            break;
-                        }
+        /** One turn in the pool */
+        private void runPooled(@NotNull LogConsumerPool pool) {
+            final boolean again;
+            try {
+                // Each consumer logs at most one batch per turn, so that a busy one can't starve the others
+                again = service(batch.length);
+            } catch (Throwable t) {
+                // Like the thread of an unpooled consumer, this consumer is dead now
+                done = true;
+                finished.countDown();
+                release();
+                throw t;
+            }
 
-                        if (messageData.matches(nextData)) {
-                            repeats++;
-                            lastRepeatTime = nextData.time;
-                        } else {
-                            break;
+            if (done) {
+                finished.countDown();
+                release();
+            } else if (again) {
+                // Back of the queue
+                pool.execute(this);
+            } else {
+                scheduled.set(false);
+                // Check again after scheduled is cleared, otherwise a producer may have missed it
+                if (available() || state != STATE_RUNNING) {
+                    schedule();
+                } else if (wakeUp != Long.MAX_VALUE) {
+                    pool.schedule(schedule, wakeUp - System.nanoTime());
+                }
+            }
+        }
+
+        /**
+         * Log the messages that are available, but at most about maxMessages, without waiting.
+         * @return true if it should be called again right away, false if it should wait for a new message, state change or {@link #wakeUp}, or if it is {@link #done}
+         */
+        private boolean service(int maxMessages) {
+            final int state = this.state;
+            if (drainExpired()) {
+                discardBacklog();
+                done = true;
+                return false;
+            }
+            if (recentPending > 0 && System.nanoTime() - recentPendingEnd >= 0) {
+                closeRecentWindows(false);
+            }
+
+            int messages = 0;
+            while (true) {
+                if (!holding) {
+                    if (drainTimeoutMs >= 0 && this.state == STATE_RUNNING_UNTIL_EMPTY) {
+                        // Stopping, deliver the messages one by one and check the timeout between them
+                        if (batchSize > 0) {
+                            deliverBatch();
+                        }
+                        if (drainExpired()) {
+                            discardBacklog();
+                            done = true;
+                            return false;
                         }
                     }
-                } else if (deduplicationMs > 0) {
-                    // Blocking deduplication
-                    state = this.state.get();
-                    if ((state == STATE_RUNNING || state == STATE_RUNNING_UNTIL_EMPTY) && this.state.compareAndSet(state, STATE_BLOCKING)) {
-                        try {
-                            final long timeout = System.nanoTime() + deduplicationMs * 1000000;
-                            boolean noWait = state == STATE_RUNNING_UNTIL_EMPTY;
-                            while (true) {
-                                try {
-                                    nextData = noWait ? queue.poll() : queue.poll(timeout - System.nanoTime(), TimeUnit.NANOSECONDS);
-                                    if (nextData == null) {
-                                        break;
-                                    }
-                                } catch (InterruptedException e) {
-                                    noWait = true;
-                                    continue;
-                                }
-
-                                if (messageData.matches(nextData)) {
-                                    repeats++;
-                                    lastRepeatTime = nextData.time;
-                                } else {
-                                    break;
-                                }
-                            }
-
-                        } finally {
-                            this.state.compareAndSet(STATE_BLOCKING, state);
+                    if (messages >= maxMessages) {
+                        if (batchSize > 0) {
+                            deliverBatch();
                         }
+                        return true;
+                    }
+
+                    final MessageData free = batch[batchSize];
+                    if (haveLookahead) {
+                        batch[batchSize] = lookahead;
+                        lookahead = free;
+                        haveLookahead = false;
+                    } else if (take(free)) {
+                        idleWaits = 0;
+                    } else {
+                        break;
+                    }
+                    messages++;
+
+                    if (recent.length > 0) {
+                        deduplicateRecent(batch[batchSize]);
+                        continue;
+                    } else if (deduplicationMs < 0) {
+                        enqueue();
+                        continue;
                     }
+                    holding = true;
+                    repeats = 0;
+                    // With deduplicationMs == 0, only messages that are already waiting are collapsed
+                    holdDeadline = System.nanoTime() + deduplicationMs * 1_000_000L;
                 }
 
+                // Consecutive deduplication
+                final MessageData message = batch[batchSize];
+                while (take(lookahead)) {
+                    idleWaits = 0;
+                    if (message.matches(lookahead)) {
+                        repeats++;
+                        lastRepeatTime = lookahead.time;
+                        lookahead.clear();
+                    } else {
+                        haveLookahead = true;
+                        break;
+                    }
+                }
+                if (!haveLookahead && deduplicationMs > 0 && state == STATE_RUNNING && System.nanoTime() - holdDeadline < 0) {
+                    if (batchSize > 0) {
+                        // Don't hold finished messages while waiting for duplicates of this one
+                        final int messageIndex = batchSize;
+                        deliverBatch();
+                        batch[messageIndex] = batch[0];
+                        batch[0] = message;
+                    }
+                    wakeUp = holdDeadline;
+                    return false;
+                }
+
+                holding = false;
                 if (repeats > 0) {
-                    messageData.content.append("\n(repeated ").append(repeats).append(" times over ").append(lastRepeatTime - messageData.time).append(" ms)");
+                    message.appendRepeated(repeats, lastRepeatTime);
+                }
+                enqueue();
+            }
+
+            // Nothing more is available right now, deliver what we have before waiting
+            if (batchSize > 0) {
+                deliverBatch();
+            }
+
+            if (state != STATE_RUNNING) {
+                if (recentPending > 0) {
+                    // Don't lose the counts when stopping
+                    closeRecentWindows(true);
+                    if (batchSize > 0) {
+                        deliverBatch();
+                    }
+                }
+                if (state == STATE_STOP || isEmpty()) {
+                    done = true;
+                    return false;
+                }
+                // Some producer is still writing its message
+                return true;
+            }
+
+            wakeUp = recentPending > 0 ? recentPendingEnd : Long.MAX_VALUE;
+            return false;
+        }
+
+        /** @return true if stopping with {@link #setDrainTimeout(long)} and the timeout has passed */
+        private boolean drainExpired() {
+            return state == STATE_RUNNING_UNTIL_EMPTY && drainTimeoutMs >= 0 && System.nanoTime() - drainDeadline >= 0;
+        }
+
+        /** Add the message at batch[batchSize] to the batch and deliver the batch if it is full */
+        private void enqueue() {
+            batch[batchSize].toEvent(batchEvents[batchSize++]);
+
+            if (batchSize == batch.length) {
+                deliverBatch();
+            }
+        }
+
+        /**
+         * Windowed deduplication, see {@link #setDeduplicationWindow(int)}.
+         * Count the message (at batch[batchSize]) if it repeats a recent message, otherwise enqueue it and remember it.
+         */
+        private void deduplicateRecent(@NotNull MessageData message) {
+            final long now = System.nanoTime();
+            final int fingerprint = message.fingerprint();
+
+            RecentMessage victim = null;
+            long victimUse = Long.MAX_VALUE;
+            for (RecentMessage recent : this.recent) {
+                final boolean open = recent.used && now - recent.windowEnd < 0;
+                if (open && recent.fingerprint == fingerprint && recent.message.matches(message)) {
+                    if (recent.repeats++ == 0) {
+                        if (recentPending++ == 0 || recent.windowEnd - recentPendingEnd < 0) {
+                            recentPendingEnd = recent.windowEnd;
+                        }
+                    }
+                    recent.lastRepeatTime = message.time;
+                    recent.lastUse = ++recentUses;
+                    message.clear();
+                    return;
                 }
 
-                parent.log(messageData.name, messageData.time, messageData.level, messageData.marker, messageData.content);
+                // Prefer free entries and closed windows with nothing to report
+                final long use = !recent.used || (!open && recent.repeats == 0) ? -1 : recent.lastUse;
+                if (use < victimUse) {
+                    victim = recent;
+                    victimUse = use;
+                }
+            }
+            assert victim != null;
+
+            final int evictedRepeats = victim.used ? victim.repeats : 0;
+            final long evictedLastRepeatTime = victim.lastRepeatTime;
+            if (evictedRepeats > 0) {
+                // Its window is closed early, the count follows the new message
+                final MessageData evicted = victim.message;
+                victim.message = spare;
+                spare = evicted;
+                // recentPendingEnd may now be too early, which only causes an extra check
+                recentPending--;
+            }
+
+            victim.message.copyFrom(message);
+            victim.fingerprint = fingerprint;
+            victim.windowEnd = now + deduplicationMs * 1_000_000L;
+            victim.lastUse = ++recentUses;
+            victim.repeats = 0;
+            victim.used = true;
+            enqueue();
 
-                final int dropped = ThreadedSafetyNet.this.dropped.getAndSet(0);
-                if (dropped > 0) {
-                    parent.log("ThreadedSafetyNet", System.currentTimeMillis(), TPLogger.LOG, null, "Dropped "+dropped+" log(s)");
+            if (evictedRepeats > 0) {
+                final MessageData free = batch[batchSize];
+                batch[batchSize] = spare;
+                spare = free;
+                batch[batchSize].appendRepeated(evictedRepeats, evictedLastRepeatTime);
+                enqueue();
+            }
+        }
+
+        /** Log the counts of repeated recent messages whose window has closed, or of all of them */
+        private void closeRecentWindows(boolean all) {
+            final long now = System.nanoTime();
+            int pending = 0;
+            long pendingEnd = 0;
+            for (RecentMessage recent : this.recent) {
+                if (!recent.used || recent.repeats == 0) {
+                    continue;
+                }
+                if (all || now - recent.windowEnd >= 0) {
+                    // Swap the remembered message into the batch, it is no longer needed
+                    final MessageData free = batch[batchSize];
+                    batch[batchSize] = recent.message;
+                    recent.message = free;
+                    batch[batchSize].appendRepeated(recent.repeats, recent.lastRepeatTime);
+                    recent.used = false;
+                    recent.repeats = 0;
+                    enqueue();
+                } else if (pending++ == 0 || recent.windowEnd - pendingEnd < 0) {
+                    pendingEnd = recent.windowEnd;
                 }
             }
+            recentPending = pending;
+            recentPendingEnd = pendingEnd;
+        }
+
+        /** Discard all waiting messages, when the drain timeout passes, and log their amount instead */
+        private void discardBacklog() {
+            final AtomicIntegerArray discarded = new AtomicIntegerArray(TPLogger.LOG + 1);
+            if (holding) {
+                countLevel(discarded, batch[batchSize].level);
+                batch[batchSize].clear();
+                holding = false;
+            }
+            for (int i = 0; i < batchSize; i++) {
+                countLevel(discarded, batch[i].level);
+                batch[i].clear();
+                batchEvents[i].clear();
+            }
+            batchSize = 0;
+            if (haveLookahead) {
+                countLevel(discarded, lookahead.level);
+                lookahead.clear();
+                haveLookahead = false;
+            }
+
+            final MessageData message = batch[0];
+            long spilled = 0;
+            final SpillFile spill = ThreadedSafetyNet.this.spill;
+            if (spill != null) {
+                try {
+                    spilled = spill.reset();
+                } catch (IOException ignored) {}
+            }
+            while (true) {
+                if (poll(message)) {
+                    countLevel(discarded, message.level);
+                    message.clear();
+                } else if (tail.get() == head) {
+                    break;
+                } else {
+                    // Some producer is still writing its message
+                    Thread.yield();
+                }
+            }
+
+            final StringBuilder report = new StringBuilder();
+            int total = appendLevelCounts(report, discarded);
+            if (spilled > 0) {
+                report.append(total > 0 ? ", " : "").append("spilled: ").append(spilled);
+                total += spilled;
+            }
+            if (total > 0) {
+                final long drainMs = (System.nanoTime() - drainStart) / 1_000_000L;
+                parent.log("ThreadedSafetyNet", System.currentTimeMillis(), TPLogger.LOG, null, "Discarded "+total+" log(s) at shutdown after draining for "+drainMs+" ms ("+report+")");
+            }
+            reportDropped(parent, dropped, "ThreadedSafetyNet");
+        }
+
+        private void deliverBatch() {
+            final int batchSize = this.batchSize;
+            try {
+                parent.logBatch(batchEvents, batchSize);
+            } finally {
+                for (int i = 0; i < batchSize; i++) {
+                    batchEvents[i].clear();
+                    batch[i].clear();
+                }
+                this.batchSize = 0;
+            }
+
+            reportDropped(parent, dropped, "ThreadedSafetyNet");
+        }
+    }
+
+    static void countLevel(@NotNull AtomicIntegerArray counts, byte level) {
+        counts.incrementAndGet(Math.max(0, Math.min(level, TPLogger.LOG)));
+    }
+
+    /**
+     * Append non-zero counts in the form of "DEBUG: 5, INFO: 3" and reset them.
+     * @return total count
+     */
+    static int appendLevelCounts(@NotNull StringBuilder sb, @NotNull AtomicIntegerArray counts) {
+        int total = 0;
+        for (byte level = 0; level < counts.length(); level++) {
+            if (counts.get(level) == 0) {
+                continue;
+            }
+            final int count = counts.getAndSet(level, 0);
+            if (total > 0) {
+                sb.append(", ");
+            }
+            sb.append(TPLogger.levelName(level)).append(": ").append(count);
+            total += count;
+        }
+        return total;
+    }
+
+    /** Log the amount of dropped messages by level, if any, and reset the counters. Only for consumer thread. */
+    static void reportDropped(@NotNull LogFunction parent, @NotNull AtomicIntegerArray dropped, @NotNull String source) {
+        for (int level = 0; level < dropped.length(); level++) {
+            if (dropped.get(level) != 0) {
+                final StringBuilder report = new StringBuilder();
+                final int total = appendLevelCounts(report, dropped);
+                parent.log(source, System.currentTimeMillis(), TPLogger.LOG, null, "Dropped "+total+" log(s) ("+report+")");
+                return;
+            }
         }
     }
 
     @Override
     public void start() {
         super.start();
-        (this.logThread = new LogThread()).start();
+        final File spillFile = this.spillFile;
+        if (spillFile != null) {
+            final SpillFile spill = new SpillFile(spillFile);
+            try {
+                spill.open();
+                this.spill = spill;
+            } catch (IOException e) {
+                spill.close();
+                parent.log("ThreadedSafetyNet", System.currentTimeMillis(), TPLogger.LOG, null, "Failed to open spill file, messages over capacity will be dropped: "+e);
+            }
+        }
+        final Consumer consumer = new Consumer(consumerPool);
+        this.consumer = consumer;
+        consumer.start();
     }
 
     @Override
     public void stop() {
-        super.stop();
-        final LogThread thread = this.logThread;
-        thread.stopAndJoin(true, true);
-        this.logThread = null;
-    }
-
-    private static final class MessageData {
-        @NotNull String name = "";
-        long time = 0L;
-        byte level = 0;
-        @Nullable Marker marker = null;
-        final StringBuilder content = new StringBuilder();
-
-        boolean matches(MessageData other) {
-            return name.equals(other.name) && level == other.level && Objects.equals(marker, other.marker) && contentEquals(content, other.content);
+        final Consumer consumer = this.consumer;
+        try {
+            consumer.stopAndJoin(true);
+        } finally {
+            this.consumer = null;
+            // Stops the parent, unless the consumer is still running, then it does so when it finishes
+            consumer.release();
         }
     }
 
-    private static boolean contentEquals(@NotNull CharSequence cs1, @NotNull CharSequence cs2) {
-        final int l1 = cs1.length();
-        final int l2 = cs2.length();
-        if (l1 != l2) {
-            return false;
-        }
+    /** {@link WaitStrategy#YIELD} and {@link WaitStrategy#PARK_BACKOFF}: amount of waits that only spin */
+    private static final int SPIN_WAITS = 100;
+    /** {@link WaitStrategy#PARK_BACKOFF}: amount of waits that yield, after spinning */
+    private static final int YIELD_WAITS = 100;
+    /** {@link WaitStrategy#PARK_BACKOFF}: first park duration, doubles on each consecutive wait */
+    private static final long MIN_PARK_NANOS = 1_000L;
+    /** {@link WaitStrategy#PARK_BACKOFF}: park duration stops doubling at MIN_PARK_NANOS << MAX_PARK_SHIFT (about 1 ms) */
+    private static final int MAX_PARK_SHIFT = 10;
 
-        for (int i = 0; i < l1; i++) {
-            final char c1 = cs1.charAt(i);
-            final char c2 = cs2.charAt(i);
-            if (c1 != c2) {
-                return false;
-            }
-        }
+    /** How the consumer thread waits for new messages when the buffer is empty */
+    public enum WaitStrategy {
+        /**
+         * Park until a producer wakes the thread up. Lowest CPU usage, but each burst pays for the wake-up,
+         * both in latency and in the producer, which has to unpark the thread. Default.
+         */
+        BLOCKING,
+        /**
+         * Spin, then yield, then park for exponentially increasing time, up to about 1 ms.
+         * Producers never have to wake the thread up, the latency after a longer pause is up to the longest park time.
+         */
+        PARK_BACKOFF,
+        /** Spin, then keep yielding. Low latency, but occupies a core when other threads don't need it. */
+        YIELD,
+        /** Keep polling without pause. Lowest latency, but occupies a whole core. */
+        BUSY_SPIN
+    }
 
-        return true;
+    /** Message remembered for windowed deduplication */
+    private static final class RecentMessage {
+        @NotNull MessageData message = new MessageData(0);
+        int fingerprint;
+        /** When the deduplication window of this message closes, in {@link System#nanoTime()} */
+        long windowEnd;
+        /** Value of Consumer.recentUses when this was last seen */
+        long lastUse;
+        /** How many times was the message repeated in the window */
+        int repeats;
+        long lastRepeatTime;
+        /** False if the entry is free */
+        boolean used = false;
     }
 }
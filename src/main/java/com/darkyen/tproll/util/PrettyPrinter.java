@@ -9,6 +9,7 @@ import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.Array;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Utility class for safe and human readable printing of objects.
@@ -543,6 +544,92 @@ public final class PrettyPrinter {
         }
     };
 
+    /**
+     * Template, preprocessed for fast substitution.
+     * Immutable, so that it can be safely shared through {@link #templateCache}.
+     */
+    private static final class CompiledTemplate {
+        /** Template from which this was compiled */
+        final @NotNull CharSequence template;
+        /** Template text, with escapes resolved and placeholders removed */
+        final @NotNull String literal;
+        /** Offsets into {@link #literal} at which the objects should be substituted, ascending */
+        final int @NotNull [] placeholders;
+
+        CompiledTemplate(@NotNull CharSequence template, @NotNull String literal, int @NotNull [] placeholders) {
+            this.template = template;
+            this.literal = literal;
+            this.placeholders = placeholders;
+        }
+    }
+
+    private static final int TEMPLATE_CACHE_SIZE = 1024;
+    /**
+     * Direct-mapped cache of compiled templates, indexed by identity hash of the template String.
+     * Most templates are constants, so this hits almost always, but dynamic templates can only evict entries, not grow it.
+     * Not synchronized, concurrent writes just overwrite each other.
+     */
+    private static final @NotNull AtomicReferenceArray<@Nullable CompiledTemplate> templateCache = new AtomicReferenceArray<>(TEMPLATE_CACHE_SIZE);
+
+    private static @NotNull CompiledTemplate compiledTemplate(@NotNull CharSequence template) {
+        if (!(template instanceof String)) {
+            // May be mutable, can't cache
+            return compileTemplate(template);
+        }
+
+        final int slot = System.identityHashCode(template) & (TEMPLATE_CACHE_SIZE - 1);
+        CompiledTemplate compiled = templateCache.get(slot);
+        if (compiled == null || compiled.template != template) {
+            compiled = compileTemplate(template);
+            templateCache.lazySet(slot, compiled);
+        }
+        return compiled;
+    }
+
+    private static @NotNull CompiledTemplate compileTemplate(@NotNull CharSequence template) {
+        final StringBuilder literal = new StringBuilder(template.length());
+        int[] placeholders = new int[4];
+        int placeholderCount = 0;
+
+        boolean escaping = false;
+        boolean substituting = false;
+
+        for (int i = 0, l = template.length(); i < l; i++) {
+            final char c = template.charAt(i);
+            if (substituting) {
+                substituting = false;
+                if (c == '}') {
+                    if (placeholderCount == placeholders.length) {
+                        placeholders = Arrays.copyOf(placeholders, placeholderCount * 2);
+                    }
+                    placeholders[placeholderCount++] = literal.length();
+                    continue;
+                } else {
+                    literal.append('{');
+                }
+            }
+
+            if (c == '\\') {
+                if (escaping) {
+                    literal.append('\\');
+                } else {
+                    escaping = true;
+                }
+            } else if (c == '{') {
+                if (escaping) {
+                    escaping = false;
+                    literal.append('{');
+                } else {
+                    substituting = true;
+                }
+            } else {
+                literal.append(c);
+            }
+        }
+
+        return new CompiledTemplate(template, literal.toString(), Arrays.copyOf(placeholders, placeholderCount));
+    }
+
     /**
      * Substitutes given objects into the template, one by one, on places where "{}" characters are.
      * @param out to which the result is appended
@@ -553,49 +640,29 @@ public final class PrettyPrinter {
         if (objects.isEmpty()) {
             out.append(template);
         } else {
-            boolean escaping = false;
-            boolean substituting = false;
+            final CompiledTemplate compiled = compiledTemplate(template);
+            final String literal = compiled.literal;
             int substitutingIndex = 0;
+            int literalIndex = 0;
             Throwable throwable = null;
 
-            for (int i = 0, l = template.length(); i < l; i++) {
-                final char c = template.charAt(i);
-                if (substituting) {
-                    substituting = false;
-                    if (c == '}') {
-                        if (substitutingIndex != objects.size()) {
-                            final Object item = objects.get(substitutingIndex);
-                            if (item instanceof Throwable) {
-                                throwable = (Throwable) item;
-                            }
-                            append(out, item);
-                            substitutingIndex++;
-                        } else {
-                            out.append("{}");
-                        }
-                        continue;
-                    } else {
-                        out.append('{');
-                    }
-                }
+            for (int placeholder : compiled.placeholders) {
+                out.append(literal, literalIndex, placeholder);
+                literalIndex = placeholder;
 
-                if (c == '\\') {
-                    if (escaping) {
-                        out.append('\\');
-                    } else {
-                        escaping = true;
-                    }
-                } else if (c == '{') {
-                    if (escaping) {
-                        escaping = false;
-                        out.append('{');
-                    } else {
-                        substituting = true;
+                if (substitutingIndex != objects.size()) {
+                    final Object item = objects.get(substitutingIndex);
+                    if (item instanceof Throwable) {
+                        throwable = (Throwable) item;
                     }
+                    append(out, item);
+                    substitutingIndex++;
                 } else {
-                    out.append(c);
+                    out.append("{}");
                 }
             }
+            out.append(literal, literalIndex, literal.length());
+
             //There are items that were not appended yet, because they have no {}
             //It could be just one throwable, in that case do not substitute it in
             if(substitutingIndex == objects.size() - 1 && objects.get(substitutingIndex) instanceof Throwable){
@@ -626,7 +693,8 @@ public final class PrettyPrinter {
 
             //Append throwable if any
             if (throwable != null) {
-                StringBuilderWriter sbw = sbwCache.get();
+                // Virtual threads are too many and too short-lived for a per-thread cache to be useful
+                final StringBuilderWriter sbw = VirtualThreads.isCurrentThreadVirtual() ? new StringBuilderWriter() : sbwCache.get();
                 sbw.setStringBuilder(out);
 
                 out.append('\n');
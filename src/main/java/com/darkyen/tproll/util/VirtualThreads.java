@@ -0,0 +1,52 @@
+package com.darkyen.tproll.util;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Virtual thread detection helper, which works even on Java versions without virtual threads.
+ *
+ * Per-thread caches ({@link ThreadLocal}s) are counterproductive on virtual threads, because there may be
+ * a huge number of them, each living only briefly, so the caches take a lot of memory and never get warm.
+ */
+public final class VirtualThreads {
+
+    /** Thread.isVirtual(), or null if not available */
+    private static final @Nullable MethodHandle IS_VIRTUAL;
+
+    static {
+        MethodHandle isVirtual = null;
+        try {
+            isVirtual = MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (Throwable ignored) {
+            // Older Java or a different platform, there are no virtual threads
+        }
+        IS_VIRTUAL = isVirtual;
+    }
+
+    /** Whether virtual threads are supported by this JVM */
+    public static final boolean SUPPORTED = IS_VIRTUAL != null;
+
+    /** @return true if the thread is virtual */
+    public static boolean isVirtual(@Nullable Thread thread) {
+        final MethodHandle isVirtual = IS_VIRTUAL;
+        if (isVirtual == null || thread == null) {
+            return false;
+        }
+        try {
+            return (boolean) isVirtual.invokeExact(thread);
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
+    /** @return true if the current thread is virtual */
+    public static boolean isCurrentThreadVirtual() {
+        return IS_VIRTUAL != null && isVirtual(Thread.currentThread());
+    }
+
+    private VirtualThreads() {/* utility class */}
+}
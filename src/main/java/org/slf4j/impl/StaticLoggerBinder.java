@@ -3,10 +3,13 @@ package org.slf4j.impl;
 import com.darkyen.tproll.TPLoggerFactory;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.ILoggerFactory;
-import org.slf4j.spi.LoggerFactoryBinder;
 
-@SuppressWarnings("unused")
-public final class StaticLoggerBinder implements LoggerFactoryBinder {
+/**
+ * Binds tproll to SLF4J 1.7, newer versions use {@link com.darkyen.tproll.TPServiceProvider}.
+ * The binder interface is deprecated since SLF4J 2, but it is still how 1.7 finds the backend.
+ */
+@SuppressWarnings({"unused", "deprecation"})
+public final class StaticLoggerBinder implements org.slf4j.spi.LoggerFactoryBinder {
 
     private static final @NotNull StaticLoggerBinder INSTANCE = new StaticLoggerBinder();
 
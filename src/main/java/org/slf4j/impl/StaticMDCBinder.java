@@ -0,0 +1,27 @@
+package org.slf4j.impl;
+
+import com.darkyen.tproll.TPMDCAdapter;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.spi.MDCAdapter;
+
+@SuppressWarnings("unused")
+public final class StaticMDCBinder {
+
+    public static final @NotNull StaticMDCBinder SINGLETON = new StaticMDCBinder();
+
+    public static @NotNull StaticMDCBinder getSingleton() {
+        return SINGLETON;
+    }
+
+    private StaticMDCBinder() {
+    }
+
+    private static final @NotNull TPMDCAdapter getMDCA_cache = new TPMDCAdapter();
+    public @NotNull MDCAdapter getMDCA() {
+        return getMDCA_cache;
+    }
+
+    public @NotNull String getMDCAdapterClassStr() {
+        return TPMDCAdapter.class.getName();
+    }
+}
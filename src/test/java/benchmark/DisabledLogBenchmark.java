@@ -0,0 +1,97 @@
+package benchmark;
+
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.logfunctions.SimpleLogFunction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of disabled log statements to a baseline, which does the same work without logging.
+ * When the level guards are folded by the JIT, disabled statements cost the same as the baseline,
+ * while a guard which is not folded costs at least as much as {@link #volatileGuard(Blackhole)}.
+ *
+ * Arguments come from non-final fields and are consumed by the {@link Blackhole} in every benchmark,
+ * so that the JIT can't eliminate them in the baseline or precompute them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class DisabledLogBenchmark {
+
+    private static final Logger LOG = LoggerFactory.getLogger("DISABLED_BENCH_LOG");
+
+    private String format = "Message {}";
+    private Object argument = "argument";
+    /** Always false, stands in for a level check which the JIT can't fold */
+    private volatile boolean enabled = false;
+
+    @Setup
+    public void setup() {
+        TPLogger.setLogFunction(SimpleLogFunction.CONSOLE_LOG_FUNCTION);
+        TPLogger.INFO();
+    }
+
+    @Benchmark
+    public void baseline(Blackhole blackhole) {
+        blackhole.consume(format);
+        blackhole.consume(argument);
+    }
+
+    @Benchmark
+    public void volatileGuard(Blackhole blackhole) {
+        if (enabled) {
+            blackhole.consume(this);
+        }
+        blackhole.consume(format);
+        blackhole.consume(argument);
+    }
+
+    @Benchmark
+    public void disabledTrace(Blackhole blackhole) {
+        LOG.trace(format, argument);
+        blackhole.consume(format);
+        blackhole.consume(argument);
+    }
+
+    @Benchmark
+    public void disabledDebug(Blackhole blackhole) {
+        LOG.debug(format, argument);
+        blackhole.consume(format);
+        blackhole.consume(argument);
+    }
+
+    @Benchmark
+    public boolean isTraceEnabled() {
+        return LOG.isTraceEnabled();
+    }
+
+    @Benchmark
+    public boolean isVolatileEnabled() {
+        return enabled;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(DisabledLogBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,96 @@
+package unit;
+
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.logfunctions.LogFunctionMultiplexer;
+import com.darkyen.tproll.logfunctions.SimpleLogFunction;
+import com.darkyen.tproll.logfunctions.adapters.ThreadedSafetyNet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Marker;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Test for congestion signal of log functions
+ */
+public class CongestionTest {
+
+    private final TPLogger log = new TPLogger("CONGESTED");
+
+    private static final class CongestedLogFunction extends LogFunction {
+        volatile boolean congested = false;
+
+        @Override
+        public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+            return true;
+        }
+
+        @Override
+        public boolean isCongested() {
+            return congested;
+        }
+    }
+
+    @After
+    public void cleanup() {
+        TPLogger.setCongestionAware(false);
+        TPLogger.setLogFunction(SimpleLogFunction.CONSOLE_LOG_FUNCTION);
+        TPLogger.INFO();
+    }
+
+    @Test
+    public void debugIsDisabledWhenCongested() {
+        final CongestedLogFunction function = new CongestedLogFunction();
+        TPLogger.setLogFunction(new LogFunctionMultiplexer(SimpleLogFunction.CONSOLE_LOG_FUNCTION, function));
+        TPLogger.TRACE();
+
+        function.congested = true;
+        Assert.assertTrue("Not congestion aware by default", log.isDebugEnabled());
+
+        TPLogger.setCongestionAware(true);
+        Assert.assertFalse(log.isTraceEnabled());
+        Assert.assertFalse(log.isDebugEnabled());
+        Assert.assertTrue(log.isInfoEnabled());
+        Assert.assertTrue(log.isErrorEnabled());
+
+        function.congested = false;
+        Assert.assertTrue(log.isTraceEnabled());
+        Assert.assertTrue(log.isDebugEnabled());
+    }
+
+    @Test
+    public void threadedSafetyNetIsCongestedWhenBehind() throws InterruptedException {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final LogFunction parent = new LogFunction() {
+            @Override
+            public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {}
+                return true;
+            }
+        };
+        final ThreadedSafetyNet net = new ThreadedSafetyNet(parent, 8, -1L, 0);
+        net.start();
+        try {
+            Assert.assertFalse(net.isCongested());
+            net.log("CONGESTED", 0, TPLogger.INFO, null, "first");
+            entered.await();
+            // The consumer is stuck in the parent, so these stay in the buffer
+            for (int i = 0; i < 6; i++) {
+                net.log("CONGESTED", 0, TPLogger.INFO, null, "message " + i);
+            }
+            Assert.assertTrue(net.isCongested());
+        } finally {
+            release.countDown();
+            net.stop();
+        }
+        Assert.assertFalse(net.isCongested());
+    }
+}
@@ -0,0 +1,129 @@
+package unit;
+
+import com.darkyen.tproll.LogEvent;
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.TPLoggerFactory;
+import com.darkyen.tproll.logfunctions.SimpleLogFunction;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.slf4j.Marker;
+import org.slf4j.spi.LoggingEventBuilder;
+import org.slf4j.spi.NOPLoggingEventBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Test for SLF4J 2 binding and fluent API
+ */
+public class FluentApiTest {
+
+    private final TPLogger log = new TPLogger("FLUENT");
+    private final ArrayList<String> received = new ArrayList<>();
+
+    @Before
+    public void prepare() {
+        TPLogger.setLogFunction(SimpleLogFunction.CONSOLE_LOG_FUNCTION);
+        TPLogger.INFO();
+        TPLogger.setLogFunction(new LogFunction() {
+            @Override
+            public boolean log(@NotNull LogEvent event) {
+                received.add(event.getTemplate().toString());
+                received.add(event.getArguments().toString());
+                final StringBuilder keyValues = new StringBuilder();
+                for (int i = 0; i < event.getKeyValueCount(); i++) {
+                    keyValues.append(event.getKey(i)).append(':').append(event.getValue(i)).append(';');
+                }
+                received.add(keyValues.toString());
+                return true;
+            }
+
+            @Override
+            public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+                Assert.fail("Not expected to be called");
+                return false;
+            }
+        });
+    }
+
+    @After
+    public void cleanup() {
+        TPLogger.setLogFunction(SimpleLogFunction.CONSOLE_LOG_FUNCTION);
+    }
+
+    @Test
+    public void providerIsUsed() {
+        Assert.assertTrue(LoggerFactory.getILoggerFactory() instanceof TPLoggerFactory);
+        MDC.pushByKey("stack", "a");
+        MDC.pushByKey("stack", "b");
+        Assert.assertEquals("b", MDC.popByKey("stack"));
+        Assert.assertEquals("a", MDC.popByKey("stack"));
+        Assert.assertNull(MDC.popByKey("stack"));
+    }
+
+    @Test
+    public void disabledLevelReturnsNop() {
+        Assert.assertSame(NOPLoggingEventBuilder.singleton(), log.atDebug());
+        log.atDebug().addKeyValue("key", "value").log("Not logged");
+        Assert.assertTrue(received.isEmpty());
+    }
+
+    @Test
+    public void keyValuesAreStructured() {
+        final IllegalStateException cause = new IllegalStateException();
+        log.atInfo().addKeyValue("user", "admin").addKeyValue("attempt", 3).setCause(cause).log("Hello {}", "world");
+        Assert.assertEquals(Arrays.asList("Hello {}", "[world, " + cause + "]", "user:admin;attempt:3;"), received);
+
+        received.clear();
+        log.atWarn().addArgument(1).addArgument(() -> 2).setMessage("{} and {}").log();
+        Assert.assertEquals(Arrays.asList("{} and {}", "[1, 2]", ""), received);
+    }
+
+    @Test
+    public void builderIsReused() {
+        final LoggingEventBuilder first = log.atInfo();
+        first.log("First");
+        final LoggingEventBuilder second = log.atInfo();
+        second.log("Second");
+        Assert.assertSame(first, second);
+        Assert.assertEquals(Arrays.asList("First", "[]", "", "Second", "[]", ""), received);
+    }
+
+    @Test
+    public void abandonedBuilderDoesNotHoldLogState() {
+        final ArrayList<LogEvent> events = new ArrayList<>();
+        TPLogger.setLogFunction(new LogFunction() {
+            @Override
+            public boolean log(@NotNull LogEvent event) {
+                events.add(event);
+                received.add(event.getTemplate() + " " + event.getKeyValueCount());
+                return true;
+            }
+
+            @Override
+            public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+                return true;
+            }
+        });
+
+        final LoggingEventBuilder abandoned = log.atInfo().addKeyValue("never", "logged");
+        log.info("First");
+        log.info("Second");
+        // Plain logging still reuses the state of the thread
+        Assert.assertEquals(2, events.size());
+        Assert.assertSame(events.get(0), events.get(1));
+
+        final LoggingEventBuilder next = log.atInfo();
+        Assert.assertNotSame(abandoned, next);
+        next.log("Third");
+        Assert.assertSame(next, log.atInfo());
+        Assert.assertEquals(Arrays.asList("First 0", "Second 0", "Third 0"), received);
+    }
+}
@@ -0,0 +1,74 @@
+package unit;
+
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.TPLoggerFactory;
+import com.darkyen.tproll.logfunctions.SimpleLogFunction;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test for per-name log level overrides
+ */
+public class LevelOverrideTest {
+
+    private final TPLoggerFactory factory = new TPLoggerFactory();
+
+    @Before
+    public void prepare() {
+        TPLogger.setLogFunction(SimpleLogFunction.CONSOLE_LOG_FUNCTION);
+        TPLogger.INFO();
+    }
+
+    @After
+    public void cleanup() {
+        TPLoggerFactory.resetLogLevel("com.example");
+        TPLoggerFactory.resetLogLevel("com.example.net");
+        TPLoggerFactory.resetLogLevel("com.example.net.Socket");
+        TPLogger.INFO();
+    }
+
+    @Test
+    public void overrideAppliesToPrefix() {
+        final TPLogger socket = factory.getLogger("com.example.net.Socket");
+        final TPLogger other = factory.getLogger("com.examples.Other");
+        Assert.assertFalse(socket.isDebugEnabled());
+
+        TPLoggerFactory.setLogLevel("com.example", TPLogger.DEBUG);
+        Assert.assertTrue(socket.isDebugEnabled());
+        Assert.assertFalse(socket.isTraceEnabled());
+        Assert.assertFalse(other.isDebugEnabled());
+        Assert.assertEquals(TPLogger.DEBUG, TPLoggerFactory.getLogLevel("com.example"));
+        Assert.assertEquals(TPLogger.INFO, TPLoggerFactory.getLogLevel("com"));
+    }
+
+    @Test
+    public void mostSpecificWins() {
+        TPLoggerFactory.setLogLevel("com.example", TPLogger.ERROR);
+        TPLoggerFactory.setLogLevel("com.example.net.Socket", TPLogger.TRACE);
+
+        final TPLogger socket = factory.getLogger("com.example.net.Socket");
+        final TPLogger server = factory.getLogger("com.example.net.Server");
+        Assert.assertEquals(TPLogger.TRACE, socket.getEffectiveLogLevel());
+        Assert.assertEquals(TPLogger.ERROR, server.getEffectiveLogLevel());
+
+        TPLoggerFactory.setLogLevel("com.example.net", TPLogger.WARN);
+        Assert.assertEquals(TPLogger.TRACE, socket.getEffectiveLogLevel());
+        Assert.assertEquals(TPLogger.WARN, server.getEffectiveLogLevel());
+
+        TPLoggerFactory.resetLogLevel("com.example.net.Socket");
+        Assert.assertEquals(TPLogger.WARN, socket.getEffectiveLogLevel());
+    }
+
+    @Test
+    public void globalLevelAppliesWithoutOverride() {
+        TPLoggerFactory.setLogLevel("com.example", TPLogger.WARN);
+        final TPLogger example = factory.getLogger("com.example.Foo");
+        final TPLogger other = factory.getLogger("org.example.Foo");
+
+        TPLogger.TRACE();
+        Assert.assertEquals(TPLogger.WARN, example.getEffectiveLogLevel());
+        Assert.assertEquals(TPLogger.TRACE, other.getEffectiveLogLevel());
+    }
+}
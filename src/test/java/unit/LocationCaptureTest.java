@@ -0,0 +1,120 @@
+package unit;
+
+import com.darkyen.tproll.LogEvent;
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.integration.JavaLoggingIntegration;
+import com.darkyen.tproll.logfunctions.SimpleLogFunction;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Marker;
+
+import java.util.ArrayList;
+
+/**
+ * Test for opt-in caller location capture
+ */
+public class LocationCaptureTest {
+
+    private final ArrayList<StackTraceElement> locations = new ArrayList<>();
+
+    @Before
+    public void prepare() {
+        TPLogger.INFO();
+        TPLogger.setLogFunction(new LogFunction() {
+            @Override
+            public boolean log(@NotNull LogEvent event) {
+                locations.add(event.getLocation());
+                return true;
+            }
+
+            @Override
+            public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+                return true;
+            }
+        });
+    }
+
+    @After
+    public void cleanup() {
+        TPLogger.setLogFunction(SimpleLogFunction.CONSOLE_LOG_FUNCTION);
+    }
+
+    @Test
+    public void locationIsNotCapturedByDefault() {
+        final TPLogger log = new TPLogger("NO-LOCATION");
+        Assert.assertFalse(log.isLocationCapture());
+        log.info("Hello");
+        Assert.assertEquals(1, locations.size());
+        Assert.assertNull(locations.get(0));
+    }
+
+    @Test
+    public void locationIsCapturedAndCached() {
+        final TPLogger log = new TPLogger("LOCATION");
+        log.setLocationCapture(true);
+        for (int i = 0; i < 2; i++) {
+            log.info("Hello {}", i);
+        }
+        log.warn("Different call site");
+
+        Assert.assertEquals(3, locations.size());
+        final StackTraceElement first = locations.get(0);
+        Assert.assertNotNull(first);
+        Assert.assertEquals(LocationCaptureTest.class.getName(), first.getClassName());
+        Assert.assertEquals("locationIsCapturedAndCached", first.getMethodName());
+        Assert.assertSame(first, locations.get(1));
+        Assert.assertNotEquals(first.getLineNumber(), locations.get(2).getLineNumber());
+
+        final StringBuilder sb = new StringBuilder();
+        LogEvent.appendLocation(sb, first);
+        Assert.assertEquals("LocationCaptureTest.locationIsCapturedAndCached(LocationCaptureTest.java:" + first.getLineNumber() + ")", sb.toString());
+
+        log.setLocationCapture(false);
+        log.info("Hello");
+        Assert.assertNull(locations.get(3));
+    }
+
+    private static void logFromHelper(TPLogger log) {
+        log.info("Shared template");
+    }
+
+    @Test
+    public void uncachedLocationIsExact() {
+        final TPLogger log = new TPLogger("EXACT");
+        log.setLocationCapture(true, false);
+        log.info("Shared template");
+        logFromHelper(log);
+
+        Assert.assertEquals(2, locations.size());
+        Assert.assertEquals("uncachedLocationIsExact", locations.get(0).getMethodName());
+        Assert.assertEquals("logFromHelper", locations.get(1).getMethodName());
+
+        // The cache is keyed by template, so the second call site is not distinguished
+        log.setLocationCapture(true, true);
+        log.info("Shared template");
+        logFromHelper(log);
+        Assert.assertSame(locations.get(2), locations.get(3));
+    }
+
+    @Test
+    public void bridgedFrameworkFramesAreSkipped() {
+        JavaLoggingIntegration.enable();
+        JavaLoggingIntegration.LOGGER.setLocationCapture(true, false);
+        try {
+            java.util.logging.Logger.getLogger("bridged").info("From java.util.logging");
+        } finally {
+            JavaLoggingIntegration.LOGGER.setLocationCapture(false);
+        }
+
+        Assert.assertEquals(1, locations.size());
+        final StackTraceElement location = locations.get(0);
+        Assert.assertNotNull(location);
+        Assert.assertEquals(LocationCaptureTest.class.getName(), location.getClassName());
+        Assert.assertEquals("bridgedFrameworkFramesAreSkipped", location.getMethodName());
+    }
+}
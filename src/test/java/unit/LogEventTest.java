@@ -0,0 +1,196 @@
+package unit;
+
+import com.darkyen.tproll.LogEvent;
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.logfunctions.AbstractAdapterLogFunction;
+import com.darkyen.tproll.logfunctions.SimpleLogFunction;
+import com.darkyen.tproll.logfunctions.adapters.LevelFilter;
+import com.darkyen.tproll.logfunctions.adapters.Prepender;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Marker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Test for deferred formatting through LogEvent
+ */
+public class LogEventTest {
+
+    private final TPLogger log = new TPLogger("EVENT-LOGGER");
+
+    @Before
+    public void prepare() {
+        TPLogger.TRACE();
+    }
+
+    @After
+    public void cleanup() {
+        TPLogger.setLogFunction(SimpleLogFunction.CONSOLE_LOG_FUNCTION);
+        TPLogger.INFO();
+    }
+
+    @Test
+    public void eventHasRawData() {
+        final ArrayList<String> received = new ArrayList<>();
+        TPLogger.setLogFunction(new LogFunction() {
+            @Override
+            public boolean log(@NotNull LogEvent event) {
+                received.add(event.getName());
+                received.add(event.getTemplate().toString());
+                received.add(event.getArguments().toString());
+                received.add(String.valueOf(event.getThrowable()));
+                received.add(event.getContent().toString());
+                return true;
+            }
+
+            @Override
+            public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+                Assert.fail("Not expected to be called");
+                return false;
+            }
+        });
+
+        log.info("Answer is {} or {}", 42, "something");
+        Assert.assertEquals(Arrays.asList("EVENT-LOGGER", "Answer is {} or {}", "[42, something]", "null", "Answer is 42 or something"), received);
+    }
+
+    @Test
+    public void filteredEventIsNotFormatted() {
+        final int[] formatted = {0};
+        final Object argument = new Object() {
+            @Override
+            public String toString() {
+                formatted[0]++;
+                return "argument";
+            }
+        };
+
+        final StringBuilder logged = new StringBuilder();
+        TPLogger.setLogFunction(new LevelFilter(new LogFunction() {
+            @Override
+            public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+                logged.append(content).append('\n');
+                return true;
+            }
+        }, TPLogger.INFO));
+
+        log.debug("Debug {}", argument);
+        Assert.assertEquals(0, formatted[0]);
+        Assert.assertEquals("", logged.toString());
+
+        log.info("Info {}", argument);
+        Assert.assertEquals(1, formatted[0]);
+        Assert.assertEquals("Info argument\n", logged.toString());
+    }
+
+    private static @NotNull LogEvent event(@NotNull String content) {
+        final LogEvent event = new LogEvent();
+        event.set("EVENT-LOGGER", 0L, TPLogger.INFO, null, content);
+        event.addKeyValue("key", "value");
+        return event;
+    }
+
+    @Test
+    public void adapterForwardsEvents() {
+        final ArrayList<Object> received = new ArrayList<>();
+        final LogFunction adapter = new AbstractAdapterLogFunction(new LogFunction() {
+            @Override
+            public boolean log(@NotNull LogEvent event) {
+                received.add(event);
+                return true;
+            }
+
+            @Override
+            public boolean logBatch(@NotNull LogEvent @NotNull [] events, int count) {
+                received.add(count);
+                return true;
+            }
+
+            @Override
+            public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+                Assert.fail("Not expected to be called");
+                return false;
+            }
+        }) {};
+
+        final LogEvent event = event("Message");
+        Assert.assertTrue(adapter.log(event));
+        Assert.assertTrue(adapter.logBatch(new LogEvent[]{event, event}, 2));
+        Assert.assertEquals(Arrays.asList(event, 2), received);
+    }
+
+    @Test
+    public void contentAdapterSeesEvents() {
+        final StringBuilder logged = new StringBuilder();
+        final LogFunction adapter = new AbstractAdapterLogFunction(new LogFunction() {
+            @Override
+            public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+                logged.append(content).append('\n');
+                return true;
+            }
+        }) {
+            @Override
+            public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+                return parent.log(name, time, level, marker, content.toString().toUpperCase());
+            }
+        };
+
+        Assert.assertTrue(adapter.log(event("First")));
+        Assert.assertTrue(adapter.logBatch(new LogEvent[]{event("Second"), event("Third")}, 2));
+        Assert.assertEquals("FIRST\nSECOND\nTHIRD\n", logged.toString());
+    }
+
+    @Test
+    public void prependerKeepsEventData() {
+        final ArrayList<String> received = new ArrayList<>();
+        final LogFunction prepender = new Prepender(new LogFunction() {
+            @Override
+            public boolean log(@NotNull LogEvent event) {
+                received.add(event.getContent().toString());
+                received.add(event.getKey(0) + "=" + event.getValue(0));
+                return true;
+            }
+
+            @Override
+            public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+                Assert.fail("Not expected to be called");
+                return false;
+            }
+        }, "> ");
+
+        Assert.assertTrue(prepender.log(event("Line\nNext")));
+        Assert.assertEquals(Arrays.asList("> Line\n> Next", "key=value"), received);
+    }
+
+    @Test
+    public void prependerReusesEvent() {
+        final ArrayList<LogEvent> events = new ArrayList<>();
+        final ArrayList<String> received = new ArrayList<>();
+        final LogFunction prepender = new Prepender(new LogFunction() {
+            @Override
+            public boolean log(@NotNull LogEvent event) {
+                events.add(event);
+                received.add(event.getContent().toString());
+                return true;
+            }
+
+            @Override
+            public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+                Assert.fail("Not expected to be called");
+                return false;
+            }
+        }, "> ");
+
+        Assert.assertTrue(prepender.log(event("First")));
+        Assert.assertTrue(prepender.log(event("Second")));
+        Assert.assertSame(events.get(0), events.get(1));
+        Assert.assertEquals(Arrays.asList("> First", "> Second"), received);
+    }
+}
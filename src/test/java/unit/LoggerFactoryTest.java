@@ -0,0 +1,55 @@
+package unit;
+
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.TPLoggerFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test for logger caching in TPLoggerFactory
+ */
+public class LoggerFactoryTest {
+
+    @After
+    public void cleanup() {
+        TPLoggerFactory.CACHE_POLICY = TPLoggerFactory.CachePolicy.STRONG;
+    }
+
+    @Test
+    public void strongCacheReturnsSameLogger() {
+        TPLoggerFactory.CACHE_POLICY = TPLoggerFactory.CachePolicy.STRONG;
+        final TPLoggerFactory factory = new TPLoggerFactory();
+        final TPLogger first = factory.getLogger("com.example.Cached");
+        final TPLogger second = factory.getLogger("com.example.Cached");
+        Assert.assertSame(first, second);
+        Assert.assertEquals("Cached", first.getName());
+    }
+
+    @Test
+    public void weakCacheReturnsSameLogger() {
+        TPLoggerFactory.CACHE_POLICY = TPLoggerFactory.CachePolicy.WEAK;
+        final TPLoggerFactory factory = new TPLoggerFactory();
+        final TPLogger first = factory.getLogger("com.example.Cached");
+        final TPLogger second = factory.getLogger("com.example.Cached");
+        Assert.assertSame(first, second);
+    }
+
+    @Test
+    public void noCacheCreatesNewLogger() {
+        TPLoggerFactory.CACHE_POLICY = TPLoggerFactory.CachePolicy.NONE;
+        final TPLoggerFactory factory = new TPLoggerFactory();
+        final TPLogger first = factory.getLogger("com.example.Cached");
+        final TPLogger second = factory.getLogger("com.example.Cached");
+        Assert.assertNotSame(first, second);
+    }
+
+    @Test
+    public void shortNamesAreShared() {
+        final TPLoggerFactory factory = new TPLoggerFactory();
+        final TPLogger first = factory.getLogger("com.example.a.Service");
+        final TPLogger second = factory.getLogger("com.example.b.Service");
+        Assert.assertNotSame(first, second);
+        Assert.assertSame(first.getName(), second.getName());
+    }
+}
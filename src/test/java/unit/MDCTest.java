@@ -0,0 +1,85 @@
+package unit;
+
+import com.darkyen.tproll.LogEvent;
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.MDCMap;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.logfunctions.SimpleLogFunction;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.MDC;
+import org.slf4j.Marker;
+
+import java.util.ArrayList;
+
+/**
+ * Test for MDC support
+ */
+public class MDCTest {
+
+    private final TPLogger log = new TPLogger("MDC");
+
+    @After
+    public void cleanup() {
+        MDC.clear();
+        TPLogger.setLogFunction(SimpleLogFunction.CONSOLE_LOG_FUNCTION);
+    }
+
+    @Test
+    public void snapshotIsImmutable() {
+        final ArrayList<MDCMap> snapshots = new ArrayList<>();
+        TPLogger.setLogFunction(new LogFunction() {
+            @Override
+            public boolean log(@NotNull LogEvent event) {
+                snapshots.add(event.getMDC());
+                return true;
+            }
+
+            @Override
+            public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+                return true;
+            }
+        });
+
+        log.info("Without MDC");
+        MDC.put("request", "42");
+        MDC.put("user", "admin");
+        log.info("With MDC");
+        MDC.remove("user");
+        MDC.put("request", "43");
+        log.info("With changed MDC");
+
+        Assert.assertEquals(3, snapshots.size());
+        Assert.assertSame(MDCMap.EMPTY, snapshots.get(0));
+
+        final MDCMap second = snapshots.get(1);
+        Assert.assertEquals(2, second.size());
+        Assert.assertEquals("request", second.key(0));
+        Assert.assertEquals("42", second.value(0));
+        Assert.assertEquals("user", second.key(1));
+        Assert.assertEquals("admin", second.value(1));
+
+        Assert.assertEquals("{request=43}", snapshots.get(2).toString());
+        Assert.assertEquals("43", MDC.get("request"));
+        Assert.assertNull(MDC.get("user"));
+    }
+
+    @Test
+    public void mdcIsRendered() {
+        final StringBuilder lines = new StringBuilder();
+        TPLogger.setLogFunction(new SimpleLogFunction(null, null, false) {
+            @Override
+            protected void logLine(byte level, @NotNull CharSequence formattedContent) {
+                lines.append(formattedContent).append('\n');
+            }
+        });
+
+        MDC.put("request", "42");
+        log.info("Hello");
+        // Strip colors, if any
+        Assert.assertEquals("[INFO ] MDC {request=42}: Hello\n", lines.toString().replaceAll("\u001B\\[[0-9;]*m", ""));
+    }
+}
@@ -9,6 +9,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -373,6 +374,27 @@ public class PrettyPrinterTest {
         }
     }
 
+    private static String substitute(CharSequence template, Object... objects) {
+        final StringBuilder sb = new StringBuilder();
+        PrettyPrinter.patternSubstituteInto(sb, template, Arrays.asList(objects));
+        return sb.toString();
+    }
+
+    @Test
+    public void patternSubstitution() {
+        for (int repeat = 0; repeat < 2; repeat++) {// Second time from cache
+            assertEquals("a 1 b 2", substitute("a {} b {}", 1, 2));
+            assertEquals("1{}{}", substitute("{}{}{}", 1));
+            assertEquals("{} 1", substitute("\\{} {}", 1));
+            assertEquals("\\{} 1", substitute("\\\\{} {}", 1));
+            assertEquals("x{y 1", substitute("x{y {}", 1));
+            assertEquals("trailing  {1}", substitute("trailing {", 1));
+            assertEquals("none {1, 2}", substitute("none", 1, 2));
+            assertEquals("raw \\{}", substitute("raw \\{}"));
+        }
+        assertEquals("builder 1", substitute(new StringBuilder("builder {}"), 1));
+    }
+
     private static final class PhonyList<T> extends ArrayList<T> {}
     private static final class PhonyMap<K, V> extends LinkedHashMap<K, V> {}
 }
@@ -0,0 +1,121 @@
+package unit;
+
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.RateLimiter;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.logfunctions.SimpleLogFunction;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Marker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Test for per-call-site rate limiting
+ */
+public class RateLimiterTest {
+
+    private final TPLogger log = new TPLogger("LIMITED");
+    /** Summaries may be logged from the background thread */
+    private final List<String> logged = Collections.synchronizedList(new ArrayList<>());
+
+    @Before
+    public void prepare() {
+        TPLogger.setLogFunction(new LogFunction() {
+            @Override
+            public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+                logged.add(content.toString());
+                return true;
+            }
+        });
+        TPLogger.INFO();
+        logged.clear();
+    }
+
+    @After
+    public void cleanup() {
+        TPLogger.setRateLimiter(null);
+        TPLogger.setLogFunction(SimpleLogFunction.CONSOLE_LOG_FUNCTION);
+    }
+
+    @Test
+    public void burstIsLimitedPerCallSite() {
+        TPLogger.setRateLimiter(new RateLimiter(0.001, 3));
+        for (int i = 0; i < 10; i++) {
+            log.warn("retrying {}", i);
+            log.info("other {}", i);
+        }
+        Assert.assertEquals(Arrays.asList("retrying 0", "other 0", "retrying 1", "other 1", "retrying 2", "other 2"), logged);
+    }
+
+    @Test
+    public void samplingWithSummary() {
+        TPLogger.setRateLimiter(new RateLimiter(0, 0, 4, 0));
+        for (int i = 1; i <= 8; i++) {
+            log.warn("retrying {}", i);
+        }
+        Assert.assertEquals(4, logged.size());
+        Assert.assertTrue(logged.get(0), logged.get(0).startsWith("Suppressed 3 message(s) like \"retrying {}\""));
+        Assert.assertEquals("retrying 4", logged.get(1));
+        Assert.assertTrue(logged.get(2), logged.get(2).startsWith("Suppressed 3 message(s) like \"retrying {}\""));
+        Assert.assertEquals("retrying 8", logged.get(3));
+    }
+
+    @Test
+    public void summaryHasLevelOfSuppressedMessages() {
+        final ArrayList<String> levels = new ArrayList<>();
+        TPLogger.setLogFunction(new LogFunction() {
+            @Override
+            public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+                levels.add(TPLogger.levelName(level) + " " + content.toString().replaceAll(" in the last.*", ""));
+                return true;
+            }
+        });
+        TPLogger.setRateLimiter(new RateLimiter(0, 0, 4, 0));
+        for (int i = 1; i <= 4; i++) {
+            final String template = "retrying {}";
+            if (i == 1) {
+                log.error(template, i);
+            } else {
+                log.info(template, i);
+            }
+        }
+        Assert.assertEquals(Arrays.asList("ERROR Suppressed 3 message(s) like \"retrying {}\"", "INFO retrying 4"), levels);
+    }
+
+    @Test
+    public void burstFollowedBySilenceIsSummarized() throws InterruptedException {
+        TPLogger.setRateLimiter(new RateLimiter(0.001, 2, 0, 100));
+        for (int i = 0; i < 5; i++) {
+            log.warn("retrying {}", i);
+        }
+        Assert.assertEquals(Arrays.asList("retrying 0", "retrying 1"), logged);
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (logged.size() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(3, logged.size());
+        Assert.assertTrue(logged.get(2), logged.get(2).startsWith("Suppressed 3 message(s) like \"retrying {}\""));
+    }
+
+    @Test
+    public void replacedLimiterIsSummarized() {
+        TPLogger.setRateLimiter(new RateLimiter(0.001, 1, 0, 60_000));
+        for (int i = 0; i < 3; i++) {
+            log.warn("retrying {}", i);
+        }
+        Assert.assertEquals(Collections.singletonList("retrying 0"), logged);
+
+        TPLogger.setRateLimiter(null);
+        Assert.assertEquals(2, logged.size());
+        Assert.assertTrue(logged.get(1), logged.get(1).startsWith("Suppressed 2 message(s) like \"retrying {}\""));
+    }
+}
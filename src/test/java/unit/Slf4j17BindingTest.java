@@ -0,0 +1,56 @@
+package unit;
+
+import com.darkyen.tproll.TPLogger;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+/**
+ * Test that tproll binds to SLF4J 1.7 through {@link org.slf4j.impl.StaticLoggerBinder}.
+ * The 1.7 API jar is copied into target/slf4j-1.7 by the build and loaded in isolation, together with tproll classes.
+ */
+public class Slf4j17BindingTest {
+
+    @Test
+    public void bindsToSlf4j17() throws ReflectiveOperationException, IOException {
+        final File api = new File("target/slf4j-1.7/slf4j-api.jar");
+        Assume.assumeTrue("SLF4J 1.7 API was not copied by the build", api.isFile());
+        final URL tproll = TPLogger.class.getProtectionDomain().getCodeSource().getLocation();
+
+        // No parent except the bootstrap loader, so SLF4J 2 from the test classpath is not visible
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{api.toURI().toURL(), tproll}, null)) {
+            final Class<?> loggerFactory = Class.forName("org.slf4j.LoggerFactory", true, loader);
+            Assert.assertTrue(((String) Class.forName("org.slf4j.impl.StaticLoggerBinder", true, loader)
+                    .getField("REQUESTED_API_VERSION").get(null)).startsWith("1.7"));
+
+            final Object factory = loggerFactory.getMethod("getILoggerFactory").invoke(null);
+            Assert.assertEquals("com.darkyen.tproll.TPLoggerFactory", factory.getClass().getName());
+
+            final Object logger = loggerFactory.getMethod("getLogger", String.class).invoke(null, "slf4j-1.7");
+            Assert.assertEquals("com.darkyen.tproll.TPLogger", logger.getClass().getName());
+            final Class<?> loggerInterface = Class.forName("org.slf4j.Logger", true, loader);
+            Assert.assertEquals(true, loggerInterface.getMethod("isInfoEnabled").invoke(logger));
+            try {
+                loggerInterface.getMethod("info", String.class, Object.class).invoke(logger, "Logged through SLF4J {}", "1.7");
+                loggerInterface.getMethod("warn", String.class, Throwable.class).invoke(logger, "With exception", new Exception("Test"));
+            } catch (InvocationTargetException e) {
+                throw new AssertionError("Logging through SLF4J 1.7 failed", e.getCause());
+            }
+
+            // Nothing that plain logging uses may link SLF4J 2 types
+            Class.forName("com.darkyen.tproll.TPLogger$ThreadLogState", true, loader).getDeclaredFields();
+            Class.forName("com.darkyen.tproll.TPLogger", true, loader).getDeclaredFields();
+
+            final Class<?> mdc = Class.forName("org.slf4j.MDC", true, loader);
+            mdc.getMethod("put", String.class, String.class).invoke(null, "key", "value");
+            Assert.assertEquals("value", mdc.getMethod("get", String.class).invoke(null, "key"));
+            mdc.getMethod("clear").invoke(null);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package unit;
+
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.logfunctions.SimpleLogFunction;
+import com.darkyen.tproll.logfunctions.adapters.StripedSafetyNet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.Marker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Test for StripedSafetyNet
+ */
+public class StripedSafetyNetTest {
+
+    @Test
+    public void threadsKeepOrder() throws InterruptedException {
+        final int threadCount = 8;
+        final int messagesPerThread = 5000;
+        final int[] lastMessage = new int[threadCount];
+        Arrays.fill(lastMessage, -1);
+        final AtomicInteger errors = new AtomicInteger();
+        final LogFunction parent = new LogFunction() {
+            @Override
+            public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+                if (name.equals("striped")) {
+                    final String[] parts = content.toString().split(":");
+                    final int thread = Integer.parseInt(parts[0]);
+                    final int message = Integer.parseInt(parts[1]);
+                    if (lastMessage[thread] + 1 != message) {
+                        errors.incrementAndGet();
+                    }
+                    lastMessage[thread] = message;
+                }
+                return true;
+            }
+        };
+        TPLogger.setLogFunction(new StripedSafetyNet(parent, 4, 4, -1L));
+
+        final Logger LOG = LoggerFactory.getLogger("striped");
+        final Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final int I = i;
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < messagesPerThread; j++) {
+                    LOG.info("{}:{}", I, j);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        TPLogger.setLogFunction(SimpleLogFunction.CONSOLE_LOG_FUNCTION);
+
+        Assert.assertEquals(0, errors.get());
+        for (int last : lastMessage) {
+            Assert.assertEquals(messagesPerThread - 1, last);
+        }
+    }
+
+    @Test
+    public void stripesAreMergedInPublishOrder() throws InterruptedException {
+        final ArrayList<String> logged = new ArrayList<>();
+        final LogFunction parent = new LogFunction() {
+            @Override
+            public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+                if (name.equals("merged")) {
+                    logged.add(content.toString());
+                }
+                return true;
+            }
+        };
+        TPLogger.setLogFunction(new StripedSafetyNet(parent, 8, 16, -1L));
+
+        final Logger LOG = LoggerFactory.getLogger("merged");
+        final ArrayList<String> expected = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            final String message = "message " + i;
+            // Each message from a different thread, likely in a different stripe
+            final Thread thread = new Thread(() -> LOG.info(message));
+            thread.start();
+            thread.join();
+            expected.add(message);
+        }
+        TPLogger.setLogFunction(SimpleLogFunction.CONSOLE_LOG_FUNCTION);
+
+        Assert.assertEquals(expected, logged);
+    }
+
+    @Test
+    public void drainTimeoutStopsFilledBacklog() throws InterruptedException {
+        final CountDownLatch firstWrite = new CountDownLatch(1);
+        final CountDownLatch parentStopped = new CountDownLatch(1);
+        final ArrayList<String> logged = new ArrayList<>();
+        final AtomicInteger writesAfterStop = new AtomicInteger();
+        final LogFunction parent = new LogFunction() {
+            private volatile boolean stopped = false;
+
+            @Override
+            public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+                if (stopped) {
+                    writesAfterStop.incrementAndGet();
+                }
+                synchronized (logged) {
+                    logged.add(content.toString());
+                }
+                if (!name.equals("StripedSafetyNet")) {
+                    firstWrite.countDown();
+                    try {
+                        // Slow disk
+                        Thread.sleep(50);
+                    } catch (InterruptedException ignored) {}
+                }
+                return true;
+            }
+
+            @Override
+            public void stop() {
+                stopped = true;
+                parentStopped.countDown();
+            }
+        };
+        final StripedSafetyNet net = new StripedSafetyNet(parent, 2, 64, -1L);
+        net.setDrainTimeout(200);
+        net.start();
+
+        net.log("drain", 0L, TPLogger.INFO, null, "first");
+        firstWrite.await();
+        // The consumer is busy writing, all of these wait in the stripe when stop() is called
+        final int backlog = 40;
+        for (int i = 0; i < backlog; i++) {
+            net.log("drain", 0L, TPLogger.INFO, null, "message");
+        }
+        net.stop();
+
+        Assert.assertTrue(parentStopped.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(0, writesAfterStop.get());
+        synchronized (logged) {
+            final String summary = logged.get(logged.size() - 1);
+            final Matcher matcher = Pattern.compile("Discarded ([0-9]+) log\\(s\\) at shutdown .*").matcher(summary);
+            Assert.assertTrue(summary, matcher.matches());
+            final int delivered = logged.size() - 2;
+            Assert.assertEquals(backlog, delivered + Integer.parseInt(matcher.group(1)));
+            Assert.assertTrue("Delivered "+delivered, delivered < backlog / 2);
+        }
+    }
+}
@@ -1,8 +1,10 @@
 package unit;
 
+import com.darkyen.tproll.LogEvent;
 import com.darkyen.tproll.LogFunction;
 import com.darkyen.tproll.TPLogger;
 import com.darkyen.tproll.logfunctions.SimpleLogFunction;
+import com.darkyen.tproll.logfunctions.adapters.LogConsumerPool;
 import com.darkyen.tproll.logfunctions.adapters.ThreadedSafetyNet;
 import com.vmlens.api.AllInterleavings;
 import org.jetbrains.annotations.NotNull;
@@ -13,9 +15,19 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.Marker;
+import org.slf4j.MarkerFactory;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class ThreadedSafetyNetTest {
 
@@ -115,6 +127,559 @@ public class ThreadedSafetyNetTest {
         test(10, 10000, 1, 100, false);
     }
 
+    @Test
+    public void smallRingKeepsOrder() throws InterruptedException {
+        final int threadCount = 8;
+        final int messagesPerThread = 5000;
+        final int[] lastMessage = new int[threadCount];
+        Arrays.fill(lastMessage, -1);
+        final AtomicInteger errors = new AtomicInteger();
+        final LogFunction parent = new LogFunction() {
+            @Override
+            public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+                if (name.equals("ring")) {
+                    final String[] parts = content.toString().split(":");
+                    final int thread = Integer.parseInt(parts[0]);
+                    final int message = Integer.parseInt(parts[1]);
+                    if (lastMessage[thread] + 1 != message) {
+                        errors.incrementAndGet();
+                    }
+                    lastMessage[thread] = message;
+                }
+                return true;
+            }
+        };
+        TPLogger.setLogFunction(new ThreadedSafetyNet(parent, 4, -1L, -1L));
+
+        final Logger LOG = LoggerFactory.getLogger("ring");
+        final Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final int I = i;
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < messagesPerThread; j++) {
+                    LOG.info("{}:{}", I, j);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        TPLogger.setLogFunction(SimpleLogFunction.CONSOLE_LOG_FUNCTION);
+
+        Assert.assertEquals(0, errors.get());
+        for (int last : lastMessage) {
+            Assert.assertEquals(messagesPerThread - 1, last);
+        }
+    }
+
+    @Test
+    public void waitStrategies() throws InterruptedException {
+        for (ThreadedSafetyNet.WaitStrategy strategy : ThreadedSafetyNet.WaitStrategy.values()) {
+            final AtomicInteger count = new AtomicInteger();
+            final LogFunction parent = new LogFunction() {
+                @Override
+                public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+                    if (name.equals("wait")) {
+                        count.incrementAndGet();
+                    }
+                    return true;
+                }
+            };
+            final ThreadedSafetyNet net = new ThreadedSafetyNet(parent, 16, -1L, -1L);
+            net.setWaitStrategy(strategy);
+            TPLogger.setLogFunction(net);
+
+            final Logger LOG = LoggerFactory.getLogger("wait");
+            final Thread[] threads = new Thread[4];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(() -> {
+                    for (int j = 0; j < 1000; j++) {
+                        LOG.info("message {}", j);
+                        if (j % 100 == 0) {
+                            // Let the consumer go idle
+                            LockSupport.parkNanos(2_000_000L);
+                        }
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+            TPLogger.setLogFunction(SimpleLogFunction.CONSOLE_LOG_FUNCTION);
+
+            Assert.assertEquals(strategy.toString(), threads.length * 1000, count.get());
+        }
+    }
+
+    @Test
+    public void batchDelivery() throws InterruptedException {
+        final CountDownLatch firstBatch = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ArrayList<Integer> batchSizes = new ArrayList<>();
+        final LogFunction parent = new LogFunction() {
+            @Override
+            public boolean logBatch(@NotNull LogEvent @NotNull [] events, int count) {
+                batchSizes.add(count);
+                firstBatch.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {}
+                return super.logBatch(events, count);
+            }
+
+            @Override
+            public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+                return true;
+            }
+        };
+        TPLogger.setLogFunction(new ThreadedSafetyNet(parent, 64, -1L, -1L));
+
+        final Logger LOG = LoggerFactory.getLogger("batch");
+        LOG.info("first");
+        firstBatch.await();
+        for (int i = 0; i < 10; i++) {
+            LOG.info("waiting {}", i);
+        }
+        release.countDown();
+        TPLogger.setLogFunction(SimpleLogFunction.CONSOLE_LOG_FUNCTION);
+
+        Assert.assertEquals(Arrays.asList(1, 10), batchSizes);
+    }
+
+    @Test
+    public void lowPriorityIsDroppedFirst() throws InterruptedException {
+        final CountDownLatch firstBatch = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ArrayList<String> logged = new ArrayList<>();
+        final LogFunction parent = new LogFunction() {
+            @Override
+            public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+                logged.add(TPLogger.levelName(level) + " " + content);
+                firstBatch.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {}
+                return true;
+            }
+        };
+        final ThreadedSafetyNet net = new ThreadedSafetyNet(parent, 8, 0L, -1L);
+        net.setLowPriorityLimit(4);
+        net.setReservedCapacity(3);
+        TPLogger.DEBUG();
+        TPLogger.setLogFunction(net);
+
+        final Logger LOG = LoggerFactory.getLogger("priority");
+        LOG.info("first");
+        firstBatch.await();
+        for (int i = 0; i < 10; i++) {
+            LOG.debug("debug");
+        }
+        for (int i = 0; i < 10; i++) {
+            LOG.info("info");
+        }
+        for (int i = 0; i < 3; i++) {
+            LOG.error("error");
+        }
+        release.countDown();
+        TPLogger.setLogFunction(SimpleLogFunction.CONSOLE_LOG_FUNCTION);
+        TPLogger.INFO();
+
+        Assert.assertEquals(Arrays.asList(
+                "INFO first",
+                // Reported after the batch during which the messages were dropped
+                "LOG Dropped 15 log(s) (DEBUG: 6, INFO: 9)",
+                "DEBUG debug", "DEBUG debug", "DEBUG debug", "DEBUG debug",
+                "INFO info",
+                "ERROR error", "ERROR error", "ERROR error"), logged);
+    }
+
+    @Test
+    public void noBandsByDefault() throws InterruptedException {
+        final CountDownLatch firstBatch = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ArrayList<String> logged = new ArrayList<>();
+        final LogFunction parent = new LogFunction() {
+            @Override
+            public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+                synchronized (logged) {
+                    logged.add(TPLogger.levelName(level) + " " + content);
+                }
+                firstBatch.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {}
+                return true;
+            }
+        };
+        // Never drop
+        final ThreadedSafetyNet net = new ThreadedSafetyNet(parent, 4, -1L, -1L);
+        net.start();
+        net.log("bands", 0, TPLogger.INFO, null, "first");
+        firstBatch.await();
+
+        final Thread producer = new Thread(() -> {
+            for (int i = 0; i < 10; i++) {
+                net.log("bands", 0, TPLogger.DEBUG, null, "debug " + i);
+            }
+        });
+        producer.start();
+        producer.join(200);
+        // Waits for the whole buffer to be consumed
+        Assert.assertTrue(producer.isAlive());
+        release.countDown();
+        producer.join();
+        net.stop();
+
+        final ArrayList<String> expected = new ArrayList<>();
+        expected.add("INFO first");
+        for (int i = 0; i < 10; i++) {
+            expected.add("DEBUG debug " + i);
+        }
+        Assert.assertEquals(expected, logged);
+    }
+
+    @Test
+    public void drainTimeoutDiscardsBacklog() throws InterruptedException {
+        final CountDownLatch firstBatch = new CountDownLatch(1);
+        final CountDownLatch summary = new CountDownLatch(1);
+        final ArrayList<String> logged = new ArrayList<>();
+        final LogFunction parent = new LogFunction() {
+            @Override
+            public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+                synchronized (logged) {
+                    logged.add(content.toString().replaceAll("[0-9]+ ms", "X ms"));
+                }
+                if (name.equals("ThreadedSafetyNet")) {
+                    summary.countDown();
+                } else {
+                    firstBatch.countDown();
+                    try {
+                        // Slow disk
+                        Thread.sleep(300);
+                    } catch (InterruptedException ignored) {}
+                }
+                return true;
+            }
+        };
+        final ThreadedSafetyNet net = new ThreadedSafetyNet(parent, 64, -1L, -1L);
+        net.setDrainTimeout(200);
+        TPLogger.DEBUG();
+        TPLogger.setLogFunction(net);
+
+        final Logger LOG = LoggerFactory.getLogger("drain");
+        LOG.info("first");
+        firstBatch.await();
+        for (int i = 0; i < 3; i++) {
+            LOG.debug("debug");
+        }
+        for (int i = 0; i < 2; i++) {
+            LOG.info("info");
+        }
+        TPLogger.setLogFunction(SimpleLogFunction.CONSOLE_LOG_FUNCTION);
+        TPLogger.INFO();
+
+        Assert.assertTrue(summary.await(5, TimeUnit.SECONDS));
+        synchronized (logged) {
+            Assert.assertEquals(Arrays.asList("first", "Discarded 5 log(s) at shutdown after draining for X ms (DEBUG: 3, INFO: 2)"), logged);
+        }
+    }
+
+    @Test
+    public void drainTimeoutStopsFilledBacklog() throws InterruptedException {
+        final CountDownLatch firstWrite = new CountDownLatch(1);
+        final CountDownLatch parentStopped = new CountDownLatch(1);
+        final ArrayList<String> logged = new ArrayList<>();
+        final AtomicInteger writesAfterStop = new AtomicInteger();
+        final LogFunction parent = new LogFunction() {
+            private volatile boolean stopped = false;
+
+            @Override
+            public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+                if (stopped) {
+                    writesAfterStop.incrementAndGet();
+                }
+                synchronized (logged) {
+                    logged.add(content.toString());
+                }
+                if (!name.equals("ThreadedSafetyNet")) {
+                    firstWrite.countDown();
+                    try {
+                        // Slow disk
+                        Thread.sleep(50);
+                    } catch (InterruptedException ignored) {}
+                }
+                return true;
+            }
+
+            @Override
+            public void stop() {
+                stopped = true;
+                parentStopped.countDown();
+            }
+        };
+        final ThreadedSafetyNet net = new ThreadedSafetyNet(parent, 64, -1L, -1L);
+        net.setDrainTimeout(200);
+        net.start();
+
+        net.log("drain", 0L, TPLogger.INFO, null, "first");
+        firstWrite.await();
+        // The consumer is busy writing, all of these wait in the ring when stop() is called
+        final int backlog = 40;
+        for (int i = 0; i < backlog; i++) {
+            net.log("drain", 0L, TPLogger.INFO, null, "message");
+        }
+        net.stop();
+
+        Assert.assertTrue(parentStopped.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(0, writesAfterStop.get());
+        synchronized (logged) {
+            final String summary = logged.get(logged.size() - 1);
+            final Matcher matcher = Pattern.compile("Discarded ([0-9]+) log\\(s\\) at shutdown .*").matcher(summary);
+            Assert.assertTrue(summary, matcher.matches());
+            final int delivered = logged.size() - 2;
+            Assert.assertEquals(backlog, delivered + Integer.parseInt(matcher.group(1)));
+            Assert.assertTrue("Delivered "+delivered, delivered < backlog / 2);
+        }
+    }
+
+    @Test
+    public void sharedPoolKeepsOrder() throws InterruptedException {
+        final LogConsumerPool pool = new LogConsumerPool(1);
+        final int netCount = 3;
+        final int messagesPerNet = 5000;
+        final ThreadedSafetyNet[] nets = new ThreadedSafetyNet[netCount];
+        final int[] lastMessage = new int[netCount];
+        final AtomicInteger errors = new AtomicInteger();
+        for (int i = 0; i < netCount; i++) {
+            final int I = i;
+            lastMessage[i] = -1;
+            nets[i] = new ThreadedSafetyNet(new LogFunction() {
+                @Override
+                public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+                    final int message = Integer.parseInt(content.toString());
+                    if (lastMessage[I] + 1 != message) {
+                        errors.incrementAndGet();
+                    }
+                    lastMessage[I] = message;
+                    return true;
+                }
+            }, 8, -1L, -1L);
+            nets[i].setConsumerPool(pool);
+            nets[i].start();
+        }
+
+        final Thread[] threads = new Thread[netCount];
+        for (int i = 0; i < netCount; i++) {
+            final ThreadedSafetyNet net = nets[i];
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < messagesPerNet; j++) {
+                    net.log("pool", 0L, TPLogger.INFO, null, Integer.toString(j));
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        for (ThreadedSafetyNet net : nets) {
+            net.stop();
+        }
+        pool.shutdown();
+
+        Assert.assertEquals(0, errors.get());
+        for (int last : lastMessage) {
+            Assert.assertEquals(messagesPerNet - 1, last);
+        }
+    }
+
+    @Test
+    public void slowNetDoesNotStarveSharedPool() throws InterruptedException {
+        final LogConsumerPool pool = new LogConsumerPool(2);
+        final CountDownLatch slowStarted = new CountDownLatch(1);
+        final CountDownLatch releaseSlow = new CountDownLatch(1);
+        final CountDownLatch fastLogged = new CountDownLatch(10);
+
+        final ThreadedSafetyNet slow = new ThreadedSafetyNet(new LogFunction() {
+            @Override
+            public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+                slowStarted.countDown();
+                try {
+                    releaseSlow.await();
+                } catch (InterruptedException ignored) {}
+                return true;
+            }
+        }, 16, -1L, -1L);
+        final ThreadedSafetyNet fast = new ThreadedSafetyNet(new LogFunction() {
+            @Override
+            public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+                fastLogged.countDown();
+                return true;
+            }
+        }, 16, -1L, -1L);
+        slow.setConsumerPool(pool);
+        fast.setConsumerPool(pool);
+        slow.start();
+        fast.start();
+
+        slow.log("slow", 0L, TPLogger.INFO, null, "stuck");
+        slowStarted.await();
+        for (int i = 0; i < 10; i++) {
+            fast.log("fast", 0L, TPLogger.INFO, null, "message");
+        }
+        final boolean fastDone = fastLogged.await(5, TimeUnit.SECONDS);
+        releaseSlow.countDown();
+        slow.stop();
+        fast.stop();
+        pool.shutdown();
+
+        Assert.assertTrue(fastDone);
+    }
+
+    @Test
+    public void overflowIsSpilledToFile() throws InterruptedException, IOException {
+        final File spillFile = File.createTempFile("tproll-spill", ".bin");
+        final CountDownLatch firstMessage = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ArrayList<String> logged = new ArrayList<>();
+        final LogFunction parent = new LogFunction() {
+            @Override
+            public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+                logged.add(content.toString());
+                firstMessage.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {}
+                return true;
+            }
+        };
+        final ThreadedSafetyNet net = new ThreadedSafetyNet(parent, 4, -1L, -1L);
+        net.setSpillFile(spillFile);
+        TPLogger.DEBUG();
+        TPLogger.setLogFunction(net);
+
+        final Logger LOG = LoggerFactory.getLogger("spill");
+        final ArrayList<String> expected = new ArrayList<>();
+        LOG.info("first");
+        expected.add("first");
+        firstMessage.await();
+        for (int i = 0; i < 100; i++) {
+            // Would block forever without the spill file
+            if (i % 2 == 0) {
+                LOG.debug("message {}", i);
+            } else {
+                LOG.warn("message {}", i);
+            }
+            expected.add("message " + i);
+        }
+        release.countDown();
+        TPLogger.setLogFunction(SimpleLogFunction.CONSOLE_LOG_FUNCTION);
+        TPLogger.INFO();
+
+        Assert.assertEquals(expected, logged);
+        Assert.assertFalse(spillFile.exists());
+    }
+
+    @Test
+    public void spilledMessagesKeepMarkers() throws InterruptedException, IOException {
+        final File spillFile = File.createTempFile("tproll-spill", ".bin");
+        final CountDownLatch firstMessage = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ArrayList<Marker> markers = new ArrayList<>();
+        final ArrayList<String> names = new ArrayList<>();
+        final LogFunction parent = new LogFunction() {
+            @Override
+            public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+                markers.add(marker);
+                names.add(name);
+                firstMessage.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {}
+                return true;
+            }
+        };
+        final ThreadedSafetyNet net = new ThreadedSafetyNet(parent, 2, -1L, -1L);
+        net.setSpillFile(spillFile);
+        net.start();
+
+        final Marker marker = MarkerFactory.getDetachedMarker("spilled");
+        final Marker sameName = MarkerFactory.getDetachedMarker("spilled");
+        final StringBuilder longName = new StringBuilder();
+        while (longName.length() <= 0xFFFF) {
+            longName.append("long.logger.name.");
+        }
+        net.log("first", 0L, TPLogger.INFO, null, "first");
+        firstMessage.await();
+        for (int i = 0; i < 10; i++) {
+            net.log("spill", 0L, TPLogger.INFO, i % 2 == 0 ? marker : sameName, "message");
+        }
+        net.log("spill", 0L, TPLogger.INFO, null, "message");
+        net.log(longName.toString(), 0L, TPLogger.INFO, marker, "message");
+        release.countDown();
+        net.stop();
+
+        Assert.assertEquals(13, markers.size());
+        Assert.assertNull(markers.get(0));
+        for (int i = 0; i < 10; i++) {
+            Assert.assertSame(i % 2 == 0 ? marker : sameName, markers.get(i + 1));
+        }
+        Assert.assertNull(markers.get(11));
+        Assert.assertSame(marker, markers.get(12));
+        Assert.assertEquals(longName.toString(), names.get(12));
+        Assert.assertFalse(spillFile.exists());
+    }
+
+    @Test
+    public void spilledMarkersAreBounded() throws InterruptedException, IOException {
+        final File spillFile = File.createTempFile("tproll-spill", ".bin");
+        final CountDownLatch firstMessage = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ArrayList<Marker> markers = new ArrayList<>();
+        final LogFunction parent = new LogFunction() {
+            @Override
+            public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+                markers.add(marker);
+                firstMessage.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {}
+                return true;
+            }
+        };
+        final ThreadedSafetyNet net = new ThreadedSafetyNet(parent, 2, -1L, -1L);
+        net.setSpillFile(spillFile);
+        net.start();
+
+        final Marker marker = MarkerFactory.getMarker("spilled");
+        final Marker detached = MarkerFactory.getDetachedMarker("detached");
+        net.log("first", 0L, TPLogger.INFO, null, "first");
+        firstMessage.await();
+        final int count = 5000;
+        for (int i = 0; i < count; i++) {
+            net.log("spill", 0L, TPLogger.INFO, i % 2 == 0 ? marker : detached, "message");
+        }
+        release.countDown();
+        net.stop();
+
+        Assert.assertEquals(count + 1, markers.size());
+        for (int i = 0; i < count; i++) {
+            final Marker logged = markers.get(i + 1);
+            if (i % 2 == 0) {
+                // Comes from the factory, so even markers which were not kept in memory keep their identity
+                Assert.assertSame(marker, logged);
+            } else if (i < 1000) {
+                Assert.assertSame(detached, logged);
+            } else {
+                Assert.assertNotNull(logged);
+                Assert.assertEquals("detached", logged.getName());
+            }
+        }
+        // Not all were kept in memory
+        Assert.assertNotSame(detached, markers.get(count));
+    }
+
     @Test
     public void collapse() {
         final StringBuilder result = new StringBuilder();
@@ -154,4 +719,38 @@ public class ThreadedSafetyNetTest {
         Assert.assertEquals("abcbab", result.toString());
     }
 
+    @Test
+    public void collapseInterleaved() {
+        final ArrayList<String> result = new ArrayList<>();
+        final LogFunction parent = new LogFunction() {
+            @Override
+            public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+                if (name.length() == 1) {
+                    final String text = content.toString();
+                    final int repeated = text.indexOf(" times over ");
+                    result.add(repeated == -1 ? name + text : name + text.substring(0, repeated));
+                }
+                return true;
+            }
+        };
+        final ThreadedSafetyNet net = new ThreadedSafetyNet(parent, 100, -1, 10000);
+        net.setDeduplicationWindow(2);
+        TPLogger.setLogFunction(net);
+
+        final Logger a = LoggerFactory.getLogger("a");
+        final Logger b = LoggerFactory.getLogger("b");
+        final Logger c = LoggerFactory.getLogger("c");
+
+        a.info(".");
+        b.info(".");
+        a.info(".");
+        b.info(".");
+        b.info(".");
+        c.info(".");// forgets a, which was seen least recently
+        b.info(".");
+
+        TPLogger.setLogFunction(SimpleLogFunction.CONSOLE_LOG_FUNCTION);
+
+        Assert.assertEquals(Arrays.asList("a.", "b.", "c.", "a.\n(repeated 1", "b.\n(repeated 3"), result);
+    }
 }
@@ -0,0 +1,124 @@
+package unit;
+
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.logfunctions.SimpleLogFunction;
+import com.darkyen.tproll.util.VirtualThreads;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Marker;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test for logging from virtual threads, which share pooled log states instead of using thread locals.
+ * Skipped when virtual threads are not available.
+ */
+public class VirtualThreadLogTest {
+
+    private final TPLogger log = new TPLogger("VIRTUAL");
+    private final ConcurrentLinkedQueue<String> logged = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger platformThreadLogs = new AtomicInteger();
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            Assume.assumeNoException("Virtual threads are not available", e);
+            throw new AssertionError(e);
+        }
+    }
+
+    private void prepare(@Nullable CountDownLatch holdUntilAllLog) {
+        TPLogger.setLogFunction(new LogFunction() {
+            @Override
+            public boolean log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+                if (!VirtualThreads.isCurrentThreadVirtual()) {
+                    platformThreadLogs.incrementAndGet();
+                }
+                logged.add(content.toString());
+                if (holdUntilAllLog != null) {
+                    // Keep the log state in use until all threads are logging at the same time
+                    holdUntilAllLog.countDown();
+                    try {
+                        holdUntilAllLog.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException ignored) {}
+                }
+                return true;
+            }
+        });
+        TPLogger.INFO();
+    }
+
+    @After
+    public void cleanup() {
+        TPLogger.setLogFunction(SimpleLogFunction.CONSOLE_LOG_FUNCTION);
+    }
+
+    @Test
+    public void concurrentAndNestedLogging() throws InterruptedException {
+        final ExecutorService executor = newVirtualThreadExecutor();
+        prepare(null);
+
+        final int tasks = 10_000;
+        final Set<String> expected = new HashSet<>();
+        for (int i = 0; i < tasks; i++) {
+            final int I = i;
+            expected.add("outer argument " + I);
+            expected.add("inner " + I);
+            executor.execute(() -> log.info("outer {}", new Object() {
+                @Override
+                public String toString() {
+                    // Formatted while the outer message is being logged
+                    log.info("inner {}", I);
+                    return "argument " + I;
+                }
+            }));
+        }
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        Assert.assertEquals(0, platformThreadLogs.get());
+        Assert.assertEquals(tasks * 2, logged.size());
+        Assert.assertEquals(expected, new HashSet<>(logged));
+    }
+
+    @Test
+    public void moreConcurrentLogsThanPooledStates() throws InterruptedException {
+        final ExecutorService executor = newVirtualThreadExecutor();
+        // The pool holds at most twice as many states as there are processors (at least 8), so some have to be allocated and dropped
+        final int threads = Math.max(Runtime.getRuntime().availableProcessors() * 8, 64);
+        final CountDownLatch allLogging = new CountDownLatch(threads);
+        prepare(allLogging);
+
+        for (int round = 0; round < 3; round++) {
+            final int R = round;
+            for (int i = 0; i < threads; i++) {
+                final int I = i;
+                executor.execute(() -> log.info("{}-{}", R, I));
+            }
+        }
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+
+        final Set<String> expected = new HashSet<>();
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < threads; i++) {
+                expected.add(round + "-" + i);
+            }
+        }
+        Assert.assertEquals(threads * 3, logged.size());
+        Assert.assertEquals(expected, new HashSet<>(logged));
+    }
+}